@@ -84,6 +84,12 @@ public class ElasticAttributeProvider extends GeoServerDataProvider<ElasticAttri
     protected static final Property<ElasticAttribute> STORED = new BeanProperty<ElasticAttribute>("stored",
             "stored");
 
+    /**
+     * If field is read from doc values
+     */
+    protected static final Property<ElasticAttribute> DOC_VALUES = new BeanProperty<ElasticAttribute>("docValues",
+            "docValues");
+
     /**
      * Build attribute provider
      * 
@@ -95,7 +101,7 @@ public class ElasticAttributeProvider extends GeoServerDataProvider<ElasticAttri
 
     @Override
     protected List<org.geoserver.web.wicket.GeoServerDataProvider.Property<ElasticAttribute>> getProperties() {
-        return Arrays.asList(USE, NAME, TYPE, DEFAULT_GEOMETRY, STORED, ANALYZED, SRID, DATE_FORMAT);
+        return Arrays.asList(USE, NAME, TYPE, DEFAULT_GEOMETRY, STORED, ANALYZED, DOC_VALUES, SRID, DATE_FORMAT);
     }
 
     @Override
@@ -28,6 +28,7 @@ import org.apache.wicket.markup.html.form.CheckBox;
 import org.apache.wicket.markup.html.form.DropDownChoice;
 import org.apache.wicket.markup.html.form.Form;
 import org.apache.wicket.markup.html.form.IChoiceRenderer;
+import org.apache.wicket.markup.html.form.TextField;
 import org.apache.wicket.markup.html.list.ListItem;
 import org.apache.wicket.markup.html.panel.FeedbackPanel;
 import org.apache.wicket.markup.html.panel.Fragment;
@@ -95,8 +96,9 @@ public abstract class ElasticConfigurationPage extends Panel {
         final Form elastic_form = new Form("es_form", new CompoundPropertyModel(this));
         add(elastic_form);
 
+        final ElasticLayerConfiguration layerConfig = fillElasticAttributes(ri);
         List<ElasticAttribute> attributes;
-        attributes = fillElasticAttributes(ri).getAttributes();
+        attributes = layerConfig.getAttributes();
         final ElasticAttributeProvider attProvider = new ElasticAttributeProvider(attributes);
 
         final GeoServerTablePanel<ElasticAttribute> elasticAttributePanel;
@@ -144,6 +146,10 @@ public abstract class ElasticConfigurationPage extends Panel {
         checkBox.setOutputMarkupId(true);
         elastic_form.add(checkBox);
 
+        // top document per group fields
+        elastic_form.add(new TextField<String>("groupBy", new PropertyModel<String>(layerConfig, "groupBy")));
+        elastic_form.add(new TextField<String>("groupSort", new PropertyModel<String>(layerConfig, "groupSort")));
+
         elastic_form.add(new AjaxButton("es_save") {
             protected void onSubmit(AjaxRequestTarget target, Form form) {
                 onSave(target);
@@ -332,6 +338,15 @@ public abstract class ElasticConfigurationPage extends Panel {
                         Fragment f = new Fragment(id, "empty", ElasticConfigurationPage.this);
                         return f;
                     }
+                } else if (property == ElasticAttributeProvider.DOC_VALUES) {
+                    if (att.isDocValuesEligible()) {
+                        Fragment f = new Fragment(id, "checkboxDocValues", ElasticConfigurationPage.this);
+                        f.add(new CheckBox("docValues", new PropertyModel<Boolean>(itemModel, "docValues")));
+                        return f;
+                    } else {
+                        Fragment f = new Fragment(id, "empty", ElasticConfigurationPage.this);
+                        return f;
+                    }
                 }
                 return null;
             }
@@ -342,6 +357,8 @@ public abstract class ElasticConfigurationPage extends Panel {
                     item.add(new AttributeModifier("style",true,Model.of("text-align:center")));
                 } else if (property == ElasticAttributeProvider.ANALYZED) {
                     item.add(new AttributeModifier("style",true,Model.of("text-align:center")));
+                } else if (property == ElasticAttributeProvider.DOC_VALUES) {
+                    item.add(new AttributeModifier("style",true,Model.of("text-align:center")));
                 }
             }
         };
@@ -0,0 +1,229 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+
+package mil.nga.giat.elasticsearch;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import mil.nga.giat.data.elasticsearch.ElasticFeatureReaderGeohashGrid;
+
+import org.geotools.coverage.CoverageFactoryFinder;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.factory.GeoTools;
+import org.geotools.factory.Hints;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.process.ProcessException;
+import org.geotools.process.factory.DescribeParameter;
+import org.geotools.process.factory.DescribeProcess;
+import org.geotools.process.factory.DescribeResult;
+import org.geotools.process.vector.BBOXExpandingFilterVisitor;
+import org.geotools.process.vector.HeatmapSurface;
+import org.geotools.process.vector.VectorProcess;
+import org.geotools.referencing.CRS;
+import org.opengis.coverage.grid.GridGeometry;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.Filter;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+import org.opengis.util.ProgressListener;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ *
+ * Heatmap rendering transformation computed from Elasticsearch geohash grid
+ * aggregation cells. The inverted query requests a geohash grid sized to the
+ * output raster, so each input feature is a grid cell weighted by its document
+ * count (or by the summed weight attribute). Features from other data stores
+ * are weighted individually, as in the standard heatmap process.
+ *
+ */
+@DescribeProcess(title = "Elasticsearch Heatmap", description = "Computes a heatmap surface over a set of data points from aggregated Elasticsearch documents and outputs as a single-band raster.")
+public class ElasticHeatmapProcess implements VectorProcess {
+
+    @DescribeResult(name = "result", description = "Output raster")
+    public GridCoverage2D execute(
+
+            // process data
+            @DescribeParameter(name = "data", description = "Input features") SimpleFeatureCollection obsFeatures,
+
+            // process parameters
+            @DescribeParameter(name = "radiusPixels", description = "Radius of the density kernel in pixels") Integer argRadiusPixels,
+            @DescribeParameter(name = "weightAttr", description = "Name of the attribute to use for data point weight", min = 0, max = 1) String valueAttr,
+            @DescribeParameter(name = "pixelsPerCell", description = "Resolution at which to compute the heatmap (in pixels). Default = 1", defaultValue = "1", min = 0, max = 1) Integer argPixelsPerCell,
+
+            // output image parameters
+            @DescribeParameter(name = "outputBBOX", description = "Bounding box of the output") ReferencedEnvelope argOutputEnv,
+            @DescribeParameter(name = "outputWidth", description = "Width of output raster in pixels") Integer argOutputWidth,
+            @DescribeParameter(name = "outputHeight", description = "Height of output raster in pixels") Integer argOutputHeight,
+
+            ProgressListener monitor) throws ProcessException {
+
+        final int pixelsPerCell = getPixelsPerCell(argPixelsPerCell);
+        final int radiusCells = getRadiusPixels(argRadiusPixels) / pixelsPerCell;
+        final int gridWidth = argOutputWidth / pixelsPerCell;
+        final int gridHeight = argOutputHeight / pixelsPerCell;
+
+        final CoordinateReferenceSystem srcCRS = obsFeatures.getSchema().getCoordinateReferenceSystem();
+        final CoordinateReferenceSystem dstCRS = argOutputEnv.getCoordinateReferenceSystem();
+        final MathTransform trans;
+        try {
+            trans = CRS.findMathTransform(srcCRS, dstCRS);
+        } catch (FactoryException e) {
+            throw new ProcessException(e);
+        }
+
+        final HeatmapSurface heatMap = new HeatmapSurface(radiusCells, argOutputEnv, gridWidth, gridHeight);
+        extractPoints(obsFeatures, valueAttr, trans, heatMap);
+        final float[][] heatMapGrid = flipXY(heatMap.computeSurface());
+
+        final GridCoverageFactory gcf = CoverageFactoryFinder.getGridCoverageFactory(GeoTools.getDefaultHints());
+        return gcf.create("Process Results", heatMapGrid, argOutputEnv);
+    }
+
+    /**
+     * Expands the query bbox by the kernel radius and adds view parameters
+     * requesting a geohash grid aggregation sized to the output raster. When
+     * a weight attribute is provided, it is summed over each grid cell. Only
+     * the weight attribute is requested, grid features always holding the 
+     * cell geometry, so that no metric is computed for other attributes.
+     */
+    @SuppressWarnings("unchecked")
+    public Query invertQuery(
+            @DescribeParameter(name = "radiusPixels", description = "Radius to use for the kernel", min = 0, max = 1) Integer argRadiusPixels,
+            @DescribeParameter(name = "weightAttr", description = "Name of the attribute to use for data point weight", min = 0, max = 1) String valueAttr,
+            @DescribeParameter(name = "pixelsPerCell", description = "Resolution at which to compute the heatmap (in pixels). Default = 1", defaultValue = "1", min = 0, max = 1) Integer argPixelsPerCell,
+            // output image parameters
+            @DescribeParameter(name = "outputBBOX", description = "Georeferenced bounding box of the output") ReferencedEnvelope argOutputEnv,
+            @DescribeParameter(name = "outputWidth", description = "Width of the output raster") Integer argOutputWidth,
+            @DescribeParameter(name = "outputHeight", description = "Height of the output raster") Integer argOutputHeight,
+            Query targetQuery, GridGeometry targetGridGeometry) throws ProcessException {
+
+        final int radiusPixels = getRadiusPixels(argRadiusPixels);
+        final double distance = pixelSize(argOutputEnv, argOutputWidth) * radiusPixels;
+        targetQuery.setFilter(expandBBox(targetQuery.getFilter(), distance));
+
+        final int pixelsPerCell = getPixelsPerCell(argPixelsPerCell);
+        final int gridSize = (Math.max(argOutputWidth, argOutputHeight) + 2 * radiusPixels) / pixelsPerCell;
+
+        final Map<String, String> parameters = new HashMap<>();
+        final Object current = targetQuery.getHints().get(Hints.VIRTUAL_TABLE_PARAMETERS);
+        if (current != null) {
+            parameters.putAll((Map<String, String>) current);
+        }
+        parameters.put(ElasticFeatureReaderGeohashGrid.PRECISION_PARAMETER, "auto");
+        parameters.put(ElasticFeatureReaderGeohashGrid.SIZE_PARAMETER, String.valueOf(Math.max(1, gridSize)));
+        if (valueAttr != null) {
+            parameters.put(ElasticFeatureReaderGeohashGrid.METRIC_PARAMETER, "sum");
+        }
+        targetQuery.getHints().put(Hints.VIRTUAL_TABLE_PARAMETERS, parameters);
+        targetQuery.setPropertyNames(valueAttr != null ? new String[] { valueAttr } : Query.NO_NAMES);
+
+        return targetQuery;
+    }
+
+    private void extractPoints(SimpleFeatureCollection obsPoints, String valueAttr,
+            MathTransform trans, HeatmapSurface heatMap) {
+
+        final double[] srcPt = new double[2];
+        final double[] dstPt = new double[2];
+        final SimpleFeatureIterator obsIt = obsPoints.features();
+        try {
+            while (obsIt.hasNext()) {
+                final SimpleFeature feature = obsIt.next();
+                final Geometry geometry = (Geometry) feature.getDefaultGeometry();
+                if (geometry == null || geometry.isEmpty()) {
+                    continue;
+                }
+                final Point point = geometry.getCentroid();
+                srcPt[0] = point.getX();
+                srcPt[1] = point.getY();
+                try {
+                    trans.transform(srcPt, 0, dstPt, 0, 1);
+                } catch (TransformException e) {
+                    // skip points which can not be transformed
+                    continue;
+                }
+                heatMap.addPoint(dstPt[0], dstPt[1], getWeight(feature, valueAttr));
+            }
+        } finally {
+            obsIt.close();
+        }
+    }
+
+    /**
+     * Weight of the feature from the weight attribute, if provided, otherwise
+     * the grid cell document count or 1 for individual documents.
+     */
+    private double getWeight(SimpleFeature feature, String valueAttr) {
+        final Object value;
+        if (valueAttr != null) {
+            value = feature.getAttribute(valueAttr);
+        } else if (feature.getType().getDescriptor(ElasticFeatureReaderGeohashGrid.DOC_COUNT) != null) {
+            value = feature.getAttribute(ElasticFeatureReaderGeohashGrid.DOC_COUNT);
+        } else {
+            value = null;
+        }
+        final double weight;
+        if (value instanceof Number) {
+            weight = ((Number) value).doubleValue();
+        } else if (valueAttr != null) {
+            weight = 0;
+        } else {
+            weight = 1;
+        }
+        return weight;
+    }
+
+    private int getRadiusPixels(Integer argRadiusPixels) {
+        return argRadiusPixels != null && argRadiusPixels > 0 ? argRadiusPixels : 0;
+    }
+
+    private int getPixelsPerCell(Integer argPixelsPerCell) {
+        return argPixelsPerCell != null && argPixelsPerCell > 1 ? argPixelsPerCell : 1;
+    }
+
+    private double pixelSize(ReferencedEnvelope outputEnv, int outputWidth) {
+        if (outputEnv.getWidth() <= 0) {
+            return 0;
+        }
+        // assume view is isotropic
+        return outputEnv.getWidth() / outputWidth;
+    }
+
+    private Filter expandBBox(Filter filter, double distance) {
+        return (Filter) filter.accept(
+                new BBOXExpandingFilterVisitor(distance, distance, distance, distance), null);
+    }
+
+    /**
+     * Flips an XY matrix along the X=Y axis, and inverts the Y axis. Used to
+     * convert from "map orientation" into the "image orientation" used by
+     * GridCoverageFactory.
+     */
+    private float[][] flipXY(float[][] grid) {
+        final int xsize = grid.length;
+        final int ysize = grid[0].length;
+
+        final float[][] grid2 = new float[ysize][xsize];
+        for (int ix = 0; ix < xsize; ix++) {
+            for (int iy = 0; iy < ysize; iy++) {
+                final int iy2 = ysize - iy - 1;
+                grid2[iy2][ix] = grid[ix][iy];
+            }
+        }
+        return grid2;
+    }
+
+}
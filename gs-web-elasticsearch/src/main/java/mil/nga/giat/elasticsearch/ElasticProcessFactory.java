@@ -0,0 +1,23 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+
+package mil.nga.giat.elasticsearch;
+
+import org.geotools.process.factory.AnnotatedBeanProcessFactory;
+import org.geotools.text.Text;
+
+/**
+ *
+ * Factory providing Elasticsearch rendering transformations
+ *
+ */
+public class ElasticProcessFactory extends AnnotatedBeanProcessFactory {
+
+    public ElasticProcessFactory() {
+        super(Text.text("Elasticsearch processes"), "elastic", ElasticHeatmapProcess.class);
+    }
+
+}
@@ -0,0 +1,130 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+
+package mil.nga.giat.elasticsearch;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import mil.nga.giat.data.elasticsearch.ElasticFeatureReaderGeohashGrid;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.data.Query;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.factory.Hints;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.DirectPosition2D;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+public class ElasticHeatmapProcessTest {
+
+    private ElasticHeatmapProcess process;
+
+    private ReferencedEnvelope bbox;
+
+    private GeometryFactory geometryFactory;
+
+    @Before
+    public void setUp() {
+        process = new ElasticHeatmapProcess();
+        bbox = new ReferencedEnvelope(0, 100, 0, 50, DefaultGeographicCRS.WGS84);
+        geometryFactory = new GeometryFactory();
+    }
+
+    @Test
+    public void testInvertQuery() {
+        Map<String, String> vparams = new HashMap<String, String>();
+        vparams.put("q", "{\"match_all\":{}}");
+        Query query = new Query("active");
+        query.setHints(new Hints(Hints.VIRTUAL_TABLE_PARAMETERS, vparams));
+
+        query = process.invertQuery(10, null, 1, bbox, 100, 50, query, null);
+        Map<String, String> parameters = getViewParameters(query);
+        assertEquals("auto", parameters.get(ElasticFeatureReaderGeohashGrid.PRECISION_PARAMETER));
+        assertEquals("120", parameters.get(ElasticFeatureReaderGeohashGrid.SIZE_PARAMETER));
+        assertNull(parameters.get(ElasticFeatureReaderGeohashGrid.METRIC_PARAMETER));
+        assertEquals("{\"match_all\":{}}", parameters.get("q"));
+        assertEquals(0, query.getPropertyNames().length);
+    }
+
+    @Test
+    public void testInvertQueryWithWeightAndPixelsPerCell() {
+        Query query = new Query("active");
+        query = process.invertQuery(10, "speed_is", 4, bbox, 100, 50, query, null);
+        Map<String, String> parameters = getViewParameters(query);
+        assertEquals("30", parameters.get(ElasticFeatureReaderGeohashGrid.SIZE_PARAMETER));
+        assertEquals("sum", parameters.get(ElasticFeatureReaderGeohashGrid.METRIC_PARAMETER));
+        assertArrayEquals(new String[] { "speed_is" }, query.getPropertyNames());
+    }
+
+    @Test
+    public void testGridCells() {
+        SimpleFeatureType featureType = createFeatureType(ElasticFeatureReaderGeohashGrid.DOC_COUNT);
+        ListFeatureCollection features = new ListFeatureCollection(featureType);
+        features.add(createFeature(featureType, "cell.1", 25, 25, 10l));
+        features.add(createFeature(featureType, "cell.2", 75, 25, 1l));
+
+        GridCoverage2D coverage = process.execute(features, 5, null, 1, bbox, 100, 50, null);
+        assertEquals(100, coverage.getRenderedImage().getWidth());
+        assertEquals(50, coverage.getRenderedImage().getHeight());
+        float dense = evaluate(coverage, 25, 25);
+        float sparse = evaluate(coverage, 75, 25);
+        assertTrue(sparse > 0);
+        assertTrue(dense > 5*sparse);
+        assertEquals(0, evaluate(coverage, 50, 45), 1e-6);
+    }
+
+    @Test
+    public void testWeightAttribute() {
+        SimpleFeatureType featureType = createFeatureType("weight");
+        ListFeatureCollection features = new ListFeatureCollection(featureType);
+        features.add(createFeature(featureType, "cell.1", 25, 25, 0l));
+        features.add(createFeature(featureType, "cell.2", 75, 25, 3l));
+
+        GridCoverage2D coverage = process.execute(features, 5, "weight", 1, bbox, 100, 50, null);
+        assertEquals(0, evaluate(coverage, 25, 25), 1e-6);
+        assertTrue(evaluate(coverage, 75, 25) > 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, String> getViewParameters(Query query) {
+        return (Map<String, String>) query.getHints().get(Hints.VIRTUAL_TABLE_PARAMETERS);
+    }
+
+    private SimpleFeatureType createFeatureType(String countAttribute) {
+        SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+        typeBuilder.setName("cells");
+        typeBuilder.setCRS(DefaultGeographicCRS.WGS84);
+        typeBuilder.add("geo", Point.class);
+        typeBuilder.add(countAttribute, Long.class);
+        return typeBuilder.buildFeatureType();
+    }
+
+    private SimpleFeature createFeature(SimpleFeatureType featureType, String id, 
+            double x, double y, long count) {
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(featureType);
+        builder.add(geometryFactory.createPoint(new Coordinate(x, y)));
+        builder.add(count);
+        return builder.buildFeature(id);
+    }
+
+    private float evaluate(GridCoverage2D coverage, double x, double y) {
+        return coverage.evaluate(new DirectPosition2D(DefaultGeographicCRS.WGS84, x, y), new float[1])[0];
+    }
+
+}
@@ -5,6 +5,7 @@
 package mil.nga.giat.data.elasticsearch;
 
 import java.io.Serializable;
+import java.util.Date;
 import java.util.Objects;
 
 /**
@@ -47,6 +48,8 @@ public class ElasticAttribute implements Serializable {
     
     private boolean nested;
 
+    private Boolean docValues;
+
     public ElasticAttribute(String name) {
         super();
         this.name = name;
@@ -55,6 +58,7 @@ public class ElasticAttribute implements Serializable {
         this.useShortName = false;
         this.stored = false;
         this.nested = false;
+        this.docValues = false;
     }
 
     public ElasticAttribute(ElasticAttribute other) {
@@ -70,6 +74,7 @@ public class ElasticAttribute implements Serializable {
         this.analyzed = other.analyzed;
         this.stored = other.stored;
         this.nested = other.nested;
+        this.docValues = other.docValues;
     }
 
     public String getName() {
@@ -164,6 +169,43 @@ public class ElasticAttribute implements Serializable {
         this.nested = nested;
     }
 
+    /**
+     * Whether the attribute is read from field data (doc values) instead of
+     * the document source or stored fields.
+     */
+    public Boolean getDocValues() {
+        return docValues;
+    }
+
+    public void setDocValues(Boolean docValues) {
+        this.docValues = docValues;
+    }
+
+    /**
+     * Whether the attribute type can be read from field data: numeric, date
+     * and not analyzed string fields outside nested objects. Geometries are
+     * excluded since geo_point field data values cannot be serialized to the
+     * client.
+     */
+    public boolean isDocValuesEligible() {
+        final boolean eligible;
+        if (nested || type == null || geometryType != null) {
+            eligible = false;
+        } else if (String.class.isAssignableFrom(type)) {
+            eligible = analyzed != null && !analyzed;
+        } else {
+            eligible = Number.class.isAssignableFrom(type) || Date.class.isAssignableFrom(type);
+        }
+        return eligible;
+    }
+
+    /**
+     * Whether the attribute is read from field data.
+     */
+    public boolean isReadFromDocValues() {
+        return docValues != null && docValues && isDocValuesEligible();
+    }
+
     public String getDisplayName() {
         final String displayName;
         if (useShortName) {
@@ -177,7 +219,7 @@ public class ElasticAttribute implements Serializable {
     @Override
     public int hashCode() {
         return Objects.hash(name, type, use, defaultGeometry, srid, dateFormat,
-                useShortName, geometryType, analyzed, stored, nested);
+                useShortName, geometryType, analyzed, stored, nested, docValues);
     }
 
     @Override
@@ -198,6 +240,7 @@ public class ElasticAttribute implements Serializable {
             equal &= Objects.equals(analyzed, other.analyzed);
             equal &= Objects.equals(stored, other.stored);
             equal &= Objects.equals(nested, other.nested);
+            equal &= Objects.equals(docValues, other.docValues);
         }
         return equal;
     }
@@ -0,0 +1,297 @@
+/**
+ * This file is hereby placed into the Public Domain. This means anyone is
+ * free to do whatever they wish with this file.
+ */
+package mil.nga.giat.data.elasticsearch;
+
+import static mil.nga.giat.data.elasticsearch.ElasticLayerConfiguration.FULL_NAME;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.elasticsearch.search.aggregations.metrics.percentiles.Percentiles;
+import org.elasticsearch.search.aggregations.metrics.stats.Stats;
+import org.elasticsearch.search.aggregations.metrics.stats.extended.ExtendedStats;
+import org.geotools.data.Query;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.filter.function.RangedClassifier;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.filter.FilterFactory;
+
+/**
+ * Computes class breaks for numeric attributes using Elasticsearch
+ * aggregations, as an alternative to the GeoTools classification functions
+ * which iterate over all features. Breaks are computed on the documents
+ * matching the query filter.
+ * <p>
+ * Methods return null if the attribute is not a numeric field that can be
+ * aggregated, the query filter is not fully supported or no documents match,
+ * in which case the GeoTools classification functions should be used. The
+ * number of classes must be positive.
+ * </p>
+ */
+public class ElasticClassifier {
+
+    private static final FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
+
+    private static final String STATS_AGGREGATION = "stats";
+
+    private static final String CLASS_AGGREGATION = "classes";
+
+    /** Number of histogram bins or percentile samples used for natural breaks */
+    private static final int JENKS_BINS = 256;
+
+    private final ElasticFeatureSource featureSource;
+
+    public ElasticClassifier(ElasticFeatureSource featureSource) {
+        this.featureSource = featureSource;
+    }
+
+    /**
+     * Classes with (approximately) equal number of values, computed with a
+     * percentiles aggregation.
+     */
+    public RangedClassifier quantile(Query query, String attribute, int classes) throws IOException {
+        checkClasses(classes);
+        final String field = getField(attribute);
+        if (field == null) {
+            return null;
+        }
+        if (classes == 1) {
+            return getSingleClass(query, field);
+        }
+        final double[] percents = new double[classes-1];
+        for (int i=1; i<classes; i++) {
+            percents[i-1] = 100.0 * i / classes;
+        }
+        final Aggregations aggregations = featureSource.aggregate(query,
+                AggregationBuilders.stats(STATS_AGGREGATION).field(field),
+                AggregationBuilders.percentiles(CLASS_AGGREGATION).field(field).percentiles(percents));
+        final Stats stats = getStats(aggregations);
+        if (stats == null) {
+            return null;
+        }
+        final Percentiles percentiles = aggregations.get(CLASS_AGGREGATION);
+        final double[] breaks = new double[classes+1];
+        breaks[0] = stats.getMin();
+        for (int i=0; i<percents.length; i++) {
+            breaks[i+1] = percentiles.percentile(percents[i]);
+        }
+        breaks[classes] = stats.getMax();
+        return createClassifier(breaks);
+    }
+
+    /**
+     * Classes of equal width between the minimum and maximum value, computed
+     * with a stats aggregation.
+     */
+    public RangedClassifier equalInterval(Query query, String attribute, int classes) throws IOException {
+        checkClasses(classes);
+        final String field = getField(attribute);
+        if (field == null) {
+            return null;
+        }
+        final Stats stats = getStats(featureSource.aggregate(query,
+                AggregationBuilders.stats(STATS_AGGREGATION).field(field)));
+        if (stats == null) {
+            return null;
+        }
+        final double width = (stats.getMax() - stats.getMin()) / classes;
+        final double[] breaks = new double[classes+1];
+        for (int i=0; i<classes; i++) {
+            breaks[i] = stats.getMin() + i * width;
+        }
+        breaks[classes] = stats.getMax();
+        return createClassifier(breaks);
+    }
+
+    /**
+     * Classes one standard deviation wide centered on the mean, computed with
+     * an extended_stats aggregation. The first and last classes are extended
+     * to the minimum and maximum values.
+     */
+    public RangedClassifier standardDeviation(Query query, String attribute, int classes) throws IOException {
+        checkClasses(classes);
+        final String field = getField(attribute);
+        if (field == null) {
+            return null;
+        }
+        final Aggregations aggregations = featureSource.aggregate(query,
+                AggregationBuilders.extendedStats(STATS_AGGREGATION).field(field));
+        final ExtendedStats stats = (ExtendedStats) getStats(aggregations);
+        if (stats == null) {
+            return null;
+        }
+        final double start = stats.getAvg() - classes / 2.0 * stats.getStdDeviation();
+        final double[] breaks = new double[classes+1];
+        breaks[0] = Math.min(stats.getMin(), start);
+        for (int i=1; i<classes; i++) {
+            breaks[i] = start + i * stats.getStdDeviation();
+        }
+        breaks[classes] = Math.max(stats.getMax(), start + classes * stats.getStdDeviation());
+        return createClassifier(breaks);
+    }
+
+    /**
+     * Natural breaks (Jenks) classes computed from the value distribution.
+     * The distribution is obtained from a histogram aggregation or, if the
+     * value range is too small for integer histogram intervals, from evenly
+     * spaced percentiles.
+     */
+    public RangedClassifier jenks(Query query, String attribute, int classes) throws IOException {
+        checkClasses(classes);
+        final String field = getField(attribute);
+        if (field == null) {
+            return null;
+        }
+        if (classes == 1) {
+            return getSingleClass(query, field);
+        }
+        final Stats stats = getStats(featureSource.aggregate(query,
+                AggregationBuilders.stats(STATS_AGGREGATION).field(field)));
+        if (stats == null) {
+            return null;
+        }
+
+        final List<Double> values = new ArrayList<>();
+        final List<Double> weights = new ArrayList<>();
+        final long interval = (long) Math.floor((stats.getMax() - stats.getMin()) / JENKS_BINS);
+        if (interval >= 1) {
+            final Aggregations aggregations = featureSource.aggregate(query,
+                    AggregationBuilders.histogram(CLASS_AGGREGATION).field(field).interval(interval));
+            final Histogram histogram = aggregations.get(CLASS_AGGREGATION);
+            for (final Histogram.Bucket bucket : histogram.getBuckets()) {
+                addValue(values, weights, bucket.getKeyAsNumber().doubleValue(), bucket.getDocCount());
+            }
+        } else {
+            final double[] percents = new double[JENKS_BINS];
+            for (int i=0; i<JENKS_BINS; i++) {
+                percents[i] = 100.0 * (i + 0.5) / JENKS_BINS;
+            }
+            final Aggregations aggregations = featureSource.aggregate(query,
+                    AggregationBuilders.percentiles(CLASS_AGGREGATION).field(field).percentiles(percents));
+            final Percentiles percentiles = aggregations.get(CLASS_AGGREGATION);
+            for (final double percent : percents) {
+                addValue(values, weights, percentiles.percentile(percent), 1);
+            }
+        }
+
+        final int[] starts = jenksBreaks(values, weights, classes);
+        final double[] breaks = new double[starts.length+1];
+        breaks[0] = stats.getMin();
+        for (int i=1; i<starts.length; i++) {
+            breaks[i] = values.get(starts[i]);
+        }
+        breaks[starts.length] = stats.getMax();
+        return createClassifier(breaks);
+    }
+
+    /**
+     * Fisher-Jenks optimal classification of weighted, sorted values.
+     * @return Index of the first value in each class
+     */
+    static int[] jenksBreaks(List<Double> values, List<Double> weights, int classes) {
+        final int n = values.size();
+        final int k = Math.max(1, Math.min(classes, n));
+        final int[][] lower = new int[n+1][k+1];
+        final double[][] variance = new double[n+1][k+1];
+        for (int j=1; j<=k; j++) {
+            lower[1][j] = 1;
+            for (int i=2; i<=n; i++) {
+                variance[i][j] = Double.POSITIVE_INFINITY;
+            }
+        }
+        for (int l=2; l<=n; l++) {
+            double s1 = 0, s2 = 0, w = 0, v = 0;
+            for (int m=1; m<=l; m++) {
+                final int i3 = l - m + 1;
+                final double value = values.get(i3-1);
+                final double weight = weights.get(i3-1);
+                s2 += value * value * weight;
+                s1 += value * weight;
+                w += weight;
+                v = s2 - (s1 * s1) / w;
+                final int i4 = i3 - 1;
+                if (i4 != 0) {
+                    for (int j=2; j<=k; j++) {
+                        if (variance[l][j] >= v + variance[i4][j-1]) {
+                            lower[l][j] = i3;
+                            variance[l][j] = v + variance[i4][j-1];
+                        }
+                    }
+                }
+            }
+            lower[l][1] = 1;
+            variance[l][1] = v;
+        }
+        final int[] starts = new int[k];
+        int upper = n;
+        for (int j=k; j>=1; j--) {
+            final int start = lower[upper][j];
+            starts[j-1] = start - 1;
+            upper = start - 1;
+        }
+        return starts;
+    }
+
+    private void addValue(List<Double> values, List<Double> weights, double value, double weight) {
+        final int last = values.size() - 1;
+        if (last >= 0 && values.get(last) == value) {
+            weights.set(last, weights.get(last) + weight);
+        } else {
+            values.add(value);
+            weights.add(weight);
+        }
+    }
+
+    /**
+     * Single class between the minimum and maximum value, requiring no
+     * distribution.
+     */
+    private RangedClassifier getSingleClass(Query query, String field) throws IOException {
+        final Stats stats = getStats(featureSource.aggregate(query,
+                AggregationBuilders.stats(STATS_AGGREGATION).field(field)));
+        if (stats == null) {
+            return null;
+        }
+        return createClassifier(new double[] {stats.getMin(), stats.getMax()});
+    }
+
+    private void checkClasses(int classes) {
+        if (classes <= 0) {
+            throw new IllegalArgumentException("Number of classes must be positive: " + classes);
+        }
+    }
+
+    private Stats getStats(Aggregations aggregations) {
+        if (aggregations == null) {
+            return null;
+        }
+        final Stats stats = aggregations.get(STATS_AGGREGATION);
+        return stats.getCount() > 0 ? stats : null;
+    }
+
+    private String getField(String attribute) throws IOException {
+        final AttributeDescriptor descriptor = featureSource.getAggregationDescriptor(ff.property(attribute));
+        if (descriptor == null || !Number.class.isAssignableFrom(descriptor.getType().getBinding())) {
+            return null;
+        }
+        return (String) descriptor.getUserData().get(FULL_NAME);
+    }
+
+    private RangedClassifier createClassifier(double[] breaks) {
+        final int classes = breaks.length - 1;
+        final Comparable<?>[] min = new Comparable[classes];
+        final Comparable<?>[] max = new Comparable[classes];
+        for (int i=0; i<classes; i++) {
+            min[i] = breaks[i];
+            max[i] = breaks[i+1];
+        }
+        return new RangedClassifier(min, max);
+    }
+
+}
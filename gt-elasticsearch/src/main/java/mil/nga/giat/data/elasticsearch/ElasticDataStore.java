@@ -8,9 +8,11 @@ import static org.elasticsearch.node.NodeBuilder.nodeBuilder;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
@@ -24,6 +26,7 @@ import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.cluster.ClusterState;
 import org.elasticsearch.cluster.metadata.IndexMetaData;
 import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.collect.ImmutableList;
 import org.elasticsearch.common.collect.ImmutableOpenMap;
 import org.elasticsearch.common.joda.Joda;
@@ -45,6 +48,7 @@ import org.geotools.feature.NameImpl;
 import org.geotools.util.logging.Logging;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.feature.type.Name;
 
 import com.vividsolutions.jts.geom.Geometry;
@@ -61,6 +65,8 @@ public class ElasticDataStore extends ContentDataStore {
 
     private final static Logger LOGGER = Logging.getLogger(ElasticDataStoreFactory.class);
 
+    static final int MAX_READER_PLANS = 100;
+
     private final String indexName;
 
     private final String searchIndices;
@@ -82,6 +88,40 @@ public class ElasticDataStore extends ContentDataStore {
     private Boolean scrollEnabled;
     
     private Integer scrollTime;    
+
+    private Long scrollPageBytes;
+
+    private Integer scrollPageMillis;
+
+    private Integer scrollPrefetch;
+
+    private Integer parallelScan;
+
+    private Boolean keysetPaging;
+
+    private Integer keysetTime;
+
+    private Long spoolMaxBytes;
+
+    private Integer spoolTime;
+
+    private Integer sampleBudget;
+
+    private Boolean packedCoordinates;
+
+    private Boolean lazyFeatures;
+
+    private final Map<String, ElasticFeatureReaderPlan> readerPlans;
+
+    private volatile Integer numberOfShards;
+
+    private final ElasticScrollRegistry scrollRegistry;
+
+    private final ElasticScrollSizer scrollSizer;
+
+    private final ElasticKeysetCache keysetCache;
+
+    private final ElasticSpoolCache spoolCache;
     
     public ElasticDataStore(String searchHost, Integer hostPort, 
             String indexName, String searchIndices, String clusterName,
@@ -101,6 +141,10 @@ public class ElasticDataStore extends ContentDataStore {
         this.scrollEnabled = scrollEnabled;
         this.scrollSize = scrollSize;
         this.scrollTime = scrollTime;
+        this.scrollRegistry = new ElasticScrollRegistry(this);
+        this.scrollSizer = new ElasticScrollSizer(this);
+        this.keysetCache = new ElasticKeysetCache(this);
+        this.spoolCache = new ElasticSpoolCache(this);
 
         if (dataPath != null) {
             Settings build = ImmutableSettings.builder()
@@ -160,6 +204,14 @@ public class ElasticDataStore extends ContentDataStore {
         }
         
         layerConfigurations = new ConcurrentHashMap<>();
+        readerPlans = Collections.synchronizedMap(new LinkedHashMap<String, ElasticFeatureReaderPlan>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ElasticFeatureReaderPlan> eldest) {
+                return size() > MAX_READER_PLANS;
+            }
+        });
         docTypes = new HashMap<>();
     }
 
@@ -218,9 +270,11 @@ public class ElasticDataStore extends ContentDataStore {
             final ClusterState state;
             state = client.admin().cluster()
                     .state(clusterStateRequest).actionGet().getState();
+            final IndexMetaData indexMetadata = state.metaData().index(indexName);
+            // refresh the shard count along with the mappings
+            numberOfShards = searchIndices.equals(indexName) ? indexMetadata.getNumberOfShards() : null;
             final MappingMetaData metadata;
-            metadata = state.metaData().index(indexName)
-                    .mapping(docType);
+            metadata = indexMetadata.mapping(docType);
 
             final byte[] mappingSource = metadata.source().uncompressed();
             final XContentParser parser;
@@ -275,6 +329,10 @@ public class ElasticDataStore extends ContentDataStore {
     @Override
     public void dispose() {
         LOGGER.fine("disposing");
+        this.scrollRegistry.clearAll();
+        this.keysetCache.clear();
+        this.spoolCache.clear();
+        this.readerPlans.clear();
         this.client.close();
         if (this.node != null) {
             this.node.close();
@@ -318,6 +376,158 @@ public class ElasticDataStore extends ContentDataStore {
 		this.scrollTime = scrollTime;
 	}
 
+    public Long getScrollPageBytes() {
+        return scrollPageBytes;
+    }
+
+    public void setScrollPageBytes(Long scrollPageBytes) {
+        this.scrollPageBytes = scrollPageBytes;
+    }
+
+    public Integer getScrollPageMillis() {
+        return scrollPageMillis;
+    }
+
+    public void setScrollPageMillis(Integer scrollPageMillis) {
+        this.scrollPageMillis = scrollPageMillis;
+    }
+
+    public Integer getScrollPrefetch() {
+        return scrollPrefetch;
+    }
+
+    public void setScrollPrefetch(Integer scrollPrefetch) {
+        this.scrollPrefetch = scrollPrefetch;
+    }
+
+    public Integer getParallelScan() {
+        return parallelScan;
+    }
+
+    public void setParallelScan(Integer parallelScan) {
+        this.parallelScan = parallelScan;
+    }
+
+    /**
+     * Maximum number of shards of the search indices, i.e. the number of
+     * shard preferences needed to address every shard of every index. The
+     * number is read from the cluster state once and again whenever the
+     * mappings are read.
+     */
+    public int getNumberOfShards() {
+        if (numberOfShards != null) {
+            return numberOfShards;
+        }
+        final ClusterStateRequest clusterStateRequest;
+        clusterStateRequest = Requests.clusterStateRequest()
+                .metaData(true)
+                .local(isLocal)
+                .indices(Strings.splitStringByCommaToArray(searchIndices));
+
+        final ClusterState state;
+        state = client.admin().cluster()
+                .state(clusterStateRequest).actionGet().getState();
+        int maxShards = 0;
+        final Iterator<IndexMetaData> indices = state.metaData().indices().valuesIt();
+        while (indices.hasNext()) {
+            maxShards = Math.max(maxShards, indices.next().getNumberOfShards());
+        }
+        numberOfShards = maxShards;
+        return maxShards;
+    }
+
+    public ElasticScrollRegistry getScrollRegistry() {
+        return scrollRegistry;
+    }
+
+    public ElasticScrollSizer getScrollSizer() {
+        return scrollSizer;
+    }
+
+    public Boolean getKeysetPaging() {
+        return keysetPaging;
+    }
+
+    public void setKeysetPaging(Boolean keysetPaging) {
+        this.keysetPaging = keysetPaging;
+    }
+
+    public Integer getKeysetTime() {
+        return keysetTime;
+    }
+
+    public void setKeysetTime(Integer keysetTime) {
+        this.keysetTime = keysetTime;
+    }
+
+    public ElasticKeysetCache getKeysetCache() {
+        return keysetCache;
+    }
+
+    public Long getSpoolMaxBytes() {
+        return spoolMaxBytes;
+    }
+
+    public void setSpoolMaxBytes(Long spoolMaxBytes) {
+        this.spoolMaxBytes = spoolMaxBytes;
+    }
+
+    public Integer getSpoolTime() {
+        return spoolTime;
+    }
+
+    public void setSpoolTime(Integer spoolTime) {
+        this.spoolTime = spoolTime;
+    }
+
+    public ElasticSpoolCache getSpoolCache() {
+        return spoolCache;
+    }
+
+    public Integer getSampleBudget() {
+        return sampleBudget;
+    }
+
+    public void setSampleBudget(Integer sampleBudget) {
+        this.sampleBudget = sampleBudget;
+    }
+
+    public Boolean getPackedCoordinates() {
+        return packedCoordinates;
+    }
+
+    public void setPackedCoordinates(Boolean packedCoordinates) {
+        this.packedCoordinates = packedCoordinates;
+    }
+
+    public Boolean getLazyFeatures() {
+        return lazyFeatures;
+    }
+
+    public void setLazyFeatures(Boolean lazyFeatures) {
+        this.lazyFeatures = lazyFeatures;
+    }
+
+    /**
+     * Reader plan for the feature type, compiled once and shared by all
+     * readers of the type and of retyped versions with the same attributes.
+     * The plan is recompiled when the schema of the type changes. Plans of
+     * the least recently read attribute combinations are evicted.
+     */
+    public ElasticFeatureReaderPlan getReaderPlan(SimpleFeatureType featureType) {
+        final StringBuilder key = new StringBuilder(featureType.getTypeName());
+        for (final AttributeDescriptor descriptor : featureType.getAttributeDescriptors()) {
+            key.append(',').append(descriptor.getLocalName());
+        }
+        final String planKey = key.toString();
+        ElasticFeatureReaderPlan plan = readerPlans.get(planKey);
+        if (plan == null || !plan.isCompatible(featureType)) {
+            plan = new ElasticFeatureReaderPlan(featureType);
+            readerPlans.put(planKey, plan);
+        }
+        return plan;
+    }
+
 	public Map<String, ElasticLayerConfiguration> getLayerConfigurations() {
         return layerConfigurations;
     }
@@ -325,6 +535,7 @@ public class ElasticDataStore extends ContentDataStore {
     public void setLayerConfiguration(ElasticLayerConfiguration layerConfig) {
         final String layerName = layerConfig.getLayerName();
         this.layerConfigurations.put(layerName, layerConfig);
+        this.readerPlans.clear();
 	}
     
     public Map<Name, String> getDocTypes() {
@@ -38,14 +38,37 @@ public class ElasticDataStoreFactory implements DataStoreFactorySpi {
 
     public static final Param DATA_PATH = new Param("data_path", String.class, "Data path (for testing)", false);
     
-    public static final Param SCROLL_ENABLED = new Param("scroll_enabled", Boolean.class, "Use scan search type instead of dfs_query_then_fetch", false, false);
+    public static final Param SCROLL_ENABLED = new Param("scroll_enabled", Boolean.class, "Scan unsorted results larger than scroll_size instead of reading up to 10000 hits in a single page (larger results are always scanned)", false, false);
     
-    public static final Param SCROLL_SIZE = new Param("scroll_size", Long.class, "Scroll size (ignored if scroll_enabled=false)", false, 20);
+    public static final Param SCROLL_SIZE = new Param("scroll_size", Long.class, "Scroll size, also the size of the first page of unpaged queries", false, 20);
 
-    public static final Param SCROLL_TIME_SECONDS = new Param("scroll_time", Integer.class, "Time to keep the scroll open in seconds (ignored if scroll_enabled=false)", false, 120);
+    public static final Param SCROLL_TIME_SECONDS = new Param("scroll_time", Integer.class, "Time to keep the scroll open in seconds, for results not fitting in a single page", false, 120);
+
+    public static final Param SCROLL_PAGE_BYTES = new Param("scroll_page_bytes", Long.class, "Target source bytes per scroll page, adapting scroll_size per layer (0 to disable)", false, 0);
+
+    public static final Param SCROLL_PAGE_MILLIS = new Param("scroll_page_millis", Integer.class, "Target round trip time in milliseconds per scroll page, adapting scroll_size per layer (0 to disable)", false, 0);
+
+    public static final Param SCROLL_PREFETCH = new Param("scroll_prefetch", Integer.class, "Number of scroll pages requested ahead of the page being read, for results not fitting in a single page (0 to disable)", false, 0);
+
+    public static final Param PARALLEL_SCAN = new Param("parallel_scan", Integer.class, "Maximum number of shards scanned concurrently, for unsorted results not fitting in a single page (0 to disable)", false, 0);
+
+    public static final Param KEYSET_PAGING = new Param("keyset_paging", Boolean.class, "Read paged queries after the sort values of a previously read page instead of from the start index (sort properties must not be analyzed)", false, false);
+
+    public static final Param KEYSET_TIME_SECONDS = new Param("keyset_time", Integer.class, "Time to keep the sort values of page boundaries in seconds, pages read after index updates may be shifted until then", false, 60);
+
+    public static final Param SPOOL_MAX_BYTES = new Param("spool_max_bytes", Long.class, "Maximum size in bytes of query results spooled to disk for the further passes of requests identified by the spool view parameter", false, 67108864);
+
+    public static final Param SPOOL_TIME_SECONDS = new Param("spool_time", Integer.class, "Time to keep spooled query results in seconds", false, 60);
+
+    public static final Param SAMPLE_BUDGET = new Param("sample_budget", Integer.class, "Maximum number of unsorted features returned, randomly sampled when exceeded (0 to disable, ignored if scroll_enabled=true)", false, 0);
+
+    public static final Param PACKED_COORDINATES = new Param("packed_coordinates", Boolean.class, "Decode geo_shape coordinates into packed coordinate sequences to reduce memory use", false, false);
+
+    public static final Param LAZY_FEATURES = new Param("lazy_features", Boolean.class, "Return features decoding attributes on first access (for rendering layers with many attributes)", false, false);
     
     protected static final Param[] PARAMS = {
-        HOSTNAME, HOSTPORT, INDEX_NAME, SEARCH_INDICES, CLUSTERNAME, LOCAL_NODE, STORE_DATA, SCROLL_ENABLED, SCROLL_SIZE, SCROLL_TIME_SECONDS
+        HOSTNAME, HOSTPORT, INDEX_NAME, SEARCH_INDICES, CLUSTERNAME, LOCAL_NODE, STORE_DATA, SCROLL_ENABLED, SCROLL_SIZE, SCROLL_TIME_SECONDS,
+        SCROLL_PAGE_BYTES, SCROLL_PAGE_MILLIS, SCROLL_PREFETCH, PARALLEL_SCAN, KEYSET_PAGING, KEYSET_TIME_SECONDS, SPOOL_MAX_BYTES, SPOOL_TIME_SECONDS, SAMPLE_BUDGET, PACKED_COORDINATES, LAZY_FEATURES
     };
     
     protected static final String DISPLAY_NAME = "Elasticsearch";
@@ -115,9 +138,53 @@ public class ElasticDataStoreFactory implements DataStoreFactorySpi {
         
         final Integer scrollTime = (Integer)getValue(SCROLL_TIME_SECONDS, params);
         
-        return new ElasticDataStore(searchHost, hostPort, indexName, searchIndices, 
+        final Long scrollPageBytes;
+        if (getValue(SCROLL_PAGE_BYTES, params) instanceof Integer) {
+            scrollPageBytes = ((Integer) getValue(SCROLL_PAGE_BYTES, params)).longValue();
+        } else {
+            scrollPageBytes = (Long) getValue(SCROLL_PAGE_BYTES, params);
+        }
+
+        final Integer scrollPageMillis = (Integer) getValue(SCROLL_PAGE_MILLIS, params);
+
+        final Integer scrollPrefetch = (Integer) getValue(SCROLL_PREFETCH, params);
+
+        final Integer parallelScan = (Integer) getValue(PARALLEL_SCAN, params);
+
+        final Boolean keysetPaging = (Boolean) getValue(KEYSET_PAGING, params);
+
+        final Integer keysetTime = (Integer) getValue(KEYSET_TIME_SECONDS, params);
+
+        final Long spoolMaxBytes;
+        if (getValue(SPOOL_MAX_BYTES, params) instanceof Integer) {
+            spoolMaxBytes = ((Integer) getValue(SPOOL_MAX_BYTES, params)).longValue();
+        } else {
+            spoolMaxBytes = (Long) getValue(SPOOL_MAX_BYTES, params);
+        }
+
+        final Integer spoolTime = (Integer) getValue(SPOOL_TIME_SECONDS, params);
+
+        final Integer sampleBudget = (Integer) getValue(SAMPLE_BUDGET, params);
+
+        final Boolean packedCoordinates = (Boolean) getValue(PACKED_COORDINATES, params);
+
+        final Boolean lazyFeatures = (Boolean) getValue(LAZY_FEATURES, params);
+
+        final ElasticDataStore dataStore = new ElasticDataStore(searchHost, hostPort, indexName, searchIndices, 
                 clusterName, localNode, storeData, dataPath, scrollSize, scrollTime,
                 scrollEnabled);
+        dataStore.setScrollPageBytes(scrollPageBytes);
+        dataStore.setScrollPageMillis(scrollPageMillis);
+        dataStore.setScrollPrefetch(scrollPrefetch);
+        dataStore.setParallelScan(parallelScan);
+        dataStore.setKeysetPaging(keysetPaging);
+        dataStore.setKeysetTime(keysetTime);
+        dataStore.setSpoolMaxBytes(spoolMaxBytes);
+        dataStore.setSpoolTime(spoolTime);
+        dataStore.setSampleBudget(sampleBudget);
+        dataStore.setPackedCoordinates(packedCoordinates);
+        dataStore.setLazyFeatures(lazyFeatures);
+        return dataStore;
     }
 
     @Override
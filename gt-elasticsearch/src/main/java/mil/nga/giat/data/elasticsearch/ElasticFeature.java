@@ -0,0 +1,382 @@
+/**
+ * This file is hereby placed into the Public Domain. This means anyone is
+ * free to do whatever they wish with this file.
+ */
+package mil.nga.giat.data.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.search.SearchHit;
+import org.geotools.feature.AttributeImpl;
+import org.geotools.feature.GeometryAttributeImpl;
+import org.geotools.feature.type.AttributeDescriptorImpl;
+import org.geotools.feature.type.Types;
+import org.geotools.filter.identity.FeatureIdImpl;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.util.Converters;
+import org.opengis.feature.GeometryAttribute;
+import org.opengis.feature.Property;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.feature.type.Name;
+import org.opengis.filter.identity.FeatureId;
+import org.opengis.geometry.BoundingBox;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Feature backed by a search hit, decoding each attribute on first access
+ * and caching the result. The source is decoded in a single pass on first
+ * attribute access, while conversion (e.g. geometry or date parsing) is
+ * deferred per attribute.
+ */
+public class ElasticFeature implements SimpleFeature {
+
+    private static final Object[] NO_SOURCE = new Object[0];
+
+    private final ElasticFeatureReaderPlan plan;
+
+    private final SimpleFeatureType featureType;
+
+    private final SearchHit hit;
+
+    private final FeatureId id;
+
+    private final Float score;
+
+    private final Float relativeScore;
+
+    private final ElasticParserUtil parserUtil;
+
+    private final Object[] values;
+
+    private final boolean[] decoded;
+
+    private Object sourceValues;
+
+    private Map<Object, Object> userData;
+
+    public ElasticFeature(SimpleFeatureType featureType, ElasticFeatureReaderPlan plan, SearchHit hit, 
+            String id, Float score, Float relativeScore, ElasticParserUtil parserUtil) {
+        this.plan = plan;
+        this.featureType = featureType;
+        this.hit = hit;
+        this.id = new FeatureIdImpl(id);
+        this.score = score;
+        this.relativeScore = relativeScore;
+        this.parserUtil = parserUtil;
+        this.values = new Object[featureType.getAttributeCount()];
+        this.decoded = new boolean[values.length];
+    }
+
+    @Override
+    public Object getAttribute(int index) throws IndexOutOfBoundsException {
+        if (!decoded[index]) {
+            final Object value = plan.readAttribute(index, hit, getSourceValues(), score,
+                    relativeScore, parserUtil);
+            values[index] = convert(value, featureType.getDescriptor(index));
+            decoded[index] = true;
+        }
+        return values[index];
+    }
+
+    @Override
+    public void setAttribute(int index, Object value) throws IndexOutOfBoundsException {
+        values[index] = convert(value, featureType.getDescriptor(index));
+        decoded[index] = true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object>[] getSourceValues() {
+        if (sourceValues == null) {
+            try {
+                final List<Object>[] decodedSource = plan.decodeSource(hit);
+                sourceValues = decodedSource != null ? decodedSource : NO_SOURCE;
+            } catch (IOException e) {
+                throw new IllegalStateException("Error decoding source of " + id, e);
+            }
+        }
+        return sourceValues != NO_SOURCE ? (List<Object>[]) sourceValues : null;
+    }
+
+    /**
+     * Converts the value to the attribute binding, as done by the feature builder.
+     */
+    private Object convert(Object value, AttributeDescriptor descriptor) {
+        Object result = value;
+        if (value != null && !descriptor.getType().getBinding().isInstance(value)) {
+            final Object converted = Converters.convert(value, descriptor.getType().getBinding());
+            if (converted != null) {
+                result = converted;
+            }
+        }
+        return result;
+    }
+
+    private int indexOf(String name) {
+        final int index = featureType.indexOf(name);
+        if (index < 0) {
+            throw new IllegalArgumentException("Unknown attribute " + name);
+        }
+        return index;
+    }
+
+    private int indexOf(Name name) {
+        final int index = featureType.indexOf(name);
+        if (index < 0) {
+            throw new IllegalArgumentException("Unknown attribute " + name);
+        }
+        return index;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        final int index = featureType.indexOf(name);
+        return index >= 0 ? getAttribute(index) : null;
+    }
+
+    @Override
+    public Object getAttribute(Name name) {
+        final int index = featureType.indexOf(name);
+        return index >= 0 ? getAttribute(index) : null;
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        setAttribute(indexOf(name), value);
+    }
+
+    @Override
+    public void setAttribute(Name name, Object value) {
+        setAttribute(indexOf(name), value);
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return values.length;
+    }
+
+    @Override
+    public List<Object> getAttributes() {
+        final Object[] attributes = new Object[values.length];
+        for (int i=0; i<attributes.length; i++) {
+            attributes[i] = getAttribute(i);
+        }
+        return Arrays.asList(attributes);
+    }
+
+    @Override
+    public void setAttributes(List<Object> attributes) {
+        for (int i=0; i<values.length; i++) {
+            setAttribute(i, attributes.get(i));
+        }
+    }
+
+    @Override
+    public void setAttributes(Object[] attributes) {
+        setAttributes(Arrays.asList(attributes));
+    }
+
+    @Override
+    public String getID() {
+        return id.getID();
+    }
+
+    @Override
+    public FeatureId getIdentifier() {
+        return id;
+    }
+
+    @Override
+    public SimpleFeatureType getType() {
+        return featureType;
+    }
+
+    @Override
+    public SimpleFeatureType getFeatureType() {
+        return featureType;
+    }
+
+    @Override
+    public Object getDefaultGeometry() {
+        final GeometryDescriptor descriptor = featureType.getGeometryDescriptor();
+        return descriptor != null ? getAttribute(descriptor.getName()) : null;
+    }
+
+    @Override
+    public void setDefaultGeometry(Object geometry) {
+        final GeometryDescriptor descriptor = featureType.getGeometryDescriptor();
+        if (descriptor == null) {
+            throw new IllegalArgumentException("Feature type has no default geometry");
+        }
+        setAttribute(descriptor.getName(), geometry);
+    }
+
+    @Override
+    public GeometryAttribute getDefaultGeometryProperty() {
+        final GeometryDescriptor descriptor = featureType.getGeometryDescriptor();
+        GeometryAttribute property = null;
+        if (descriptor != null) {
+            property = new GeometryAttributeImpl(getDefaultGeometry(), descriptor, null);
+        }
+        return property;
+    }
+
+    @Override
+    public void setDefaultGeometryProperty(GeometryAttribute geometryAttribute) {
+        if (geometryAttribute != null) {
+            setDefaultGeometry(geometryAttribute.getValue());
+        } else {
+            setDefaultGeometry(null);
+        }
+    }
+
+    @Override
+    public BoundingBox getBounds() {
+        final ReferencedEnvelope bounds = new ReferencedEnvelope(featureType.getCoordinateReferenceSystem());
+        for (int i=0; i<values.length; i++) {
+            if (featureType.getDescriptor(i) instanceof GeometryDescriptor) {
+                final Object geometry = getAttribute(i);
+                if (geometry instanceof Geometry) {
+                    bounds.expandToInclude(((Geometry) geometry).getEnvelopeInternal());
+                }
+            }
+        }
+        return bounds;
+    }
+
+    @Override
+    public Collection<Property> getProperties() {
+        final List<Property> properties = new ArrayList<>(values.length);
+        for (int i=0; i<values.length; i++) {
+            properties.add(createProperty(i));
+        }
+        return properties;
+    }
+
+    @Override
+    public Collection<Property> getProperties(Name name) {
+        final int index = featureType.indexOf(name);
+        final List<Property> properties = new ArrayList<>(1);
+        if (index >= 0) {
+            properties.add(createProperty(index));
+        }
+        return properties;
+    }
+
+    @Override
+    public Collection<Property> getProperties(String name) {
+        final int index = featureType.indexOf(name);
+        final List<Property> properties = new ArrayList<>(1);
+        if (index >= 0) {
+            properties.add(createProperty(index));
+        }
+        return properties;
+    }
+
+    @Override
+    public Property getProperty(Name name) {
+        final int index = featureType.indexOf(name);
+        return index >= 0 ? createProperty(index) : null;
+    }
+
+    @Override
+    public Property getProperty(String name) {
+        final int index = featureType.indexOf(name);
+        return index >= 0 ? createProperty(index) : null;
+    }
+
+    /**
+     * Detached property view of the attribute value.
+     */
+    private Property createProperty(int index) {
+        final AttributeDescriptor descriptor = featureType.getDescriptor(index);
+        final Property property;
+        if (descriptor instanceof GeometryDescriptor) {
+            property = new GeometryAttributeImpl(getAttribute(index), (GeometryDescriptor) descriptor, null);
+        } else {
+            property = new AttributeImpl(getAttribute(index), descriptor, null);
+        }
+        return property;
+    }
+
+    @Override
+    public Collection<? extends Property> getValue() {
+        return getProperties();
+    }
+
+    @Override
+    public void setValue(Collection<Property> properties) {
+        for (final Property property : properties) {
+            setAttribute(property.getName(), property.getValue());
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void setValue(Object newValue) {
+        setValue((Collection<Property>) newValue);
+    }
+
+    @Override
+    public AttributeDescriptor getDescriptor() {
+        return new AttributeDescriptorImpl(featureType, featureType.getName(), 0, Integer.MAX_VALUE, true, null);
+    }
+
+    @Override
+    public Name getName() {
+        return featureType.getName();
+    }
+
+    @Override
+    public boolean isNillable() {
+        return true;
+    }
+
+    @Override
+    public Map<Object, Object> getUserData() {
+        if (userData == null) {
+            userData = new HashMap<>();
+        }
+        return userData;
+    }
+
+    @Override
+    public void validate() {
+        for (int i=0; i<values.length; i++) {
+            Types.validate(featureType.getDescriptor(i), getAttribute(i));
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return id.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof SimpleFeature)) {
+            return false;
+        }
+        final SimpleFeature feature = (SimpleFeature) obj;
+        return id.equals(feature.getIdentifier()) && featureType.equals(feature.getFeatureType())
+                && getAttributes().equals(feature.getAttributes());
+    }
+
+    @Override
+    public String toString() {
+        return "ElasticFeature:" + id.getID();
+    }
+
+}
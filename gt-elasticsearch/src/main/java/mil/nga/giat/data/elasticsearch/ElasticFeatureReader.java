@@ -4,34 +4,28 @@
  */
 package mil.nga.giat.data.elasticsearch;
 
-import com.vividsolutions.jts.geom.Geometry;
-
-import static mil.nga.giat.data.elasticsearch.ElasticLayerConfiguration.DATE_FORMAT;
-import static mil.nga.giat.data.elasticsearch.ElasticLayerConfiguration.FULL_NAME;
-
 import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.common.base.Joiner;
-import org.elasticsearch.common.joda.Joda;
-import org.elasticsearch.common.joda.time.format.DateTimeFormatter;
 import org.elasticsearch.search.SearchHit;
-import org.elasticsearch.search.SearchHitField;
 import org.geotools.data.FeatureReader;
 import org.geotools.data.store.ContentState;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.feature.type.AttributeDescriptor;
 
-import java.util.Date;
+import java.io.IOException;
 import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
 
 /**
  * FeatureReader access to the Elasticsearch index.
  */
 public class ElasticFeatureReader implements FeatureReader<SimpleFeatureType, SimpleFeature> {
 
+    /**
+     * Key used in the feature user data to store the ratio of returned to
+     * matching documents when results are a random sample.
+     */
+    public static final String SAMPLE_RATIO = "sample_ratio";
+
     private final ContentState state;
 
     private final SimpleFeatureType featureType;
@@ -44,35 +38,50 @@ public class ElasticFeatureReader implements FeatureReader<SimpleFeatureType, Si
 
     private ElasticParserUtil parserUtil;
 
+    private Double sampleRatio;
+
+    private ElasticFeatureReaderPlan plan;
+
+    private boolean lazyFeatures;
+
     public ElasticFeatureReader(ContentState contentState, SearchResponse response) {
+        this(contentState, contentState.getFeatureType(), response);
+    }
+
+    public ElasticFeatureReader(ContentState contentState, SimpleFeatureType featureType, 
+            SearchResponse response) {
     	this.state = contentState;
-    	this.featureType = state.getFeatureType();
+    	this.featureType = featureType;
     	this.searchHitIterator = response.getHits().iterator();
     	this.builder = new SimpleFeatureBuilder(featureType);
-    	this.parserUtil = new ElasticParserUtil();
+    	this.parserUtil = createParserUtil(state);
     	this.maxScore = response.getHits().getMaxScore();
+    	this.plan = getPlan(state, featureType);
     }
     
     public ElasticFeatureReader(ContentState contentState, Iterator<SearchHit> searchHitIterator) {
+        this(contentState, contentState.getFeatureType(), searchHitIterator);
+    }
+
+    public ElasticFeatureReader(ContentState contentState, SimpleFeatureType featureType, 
+            Iterator<SearchHit> searchHitIterator) {
     	this.state = contentState;
-        this.featureType = state.getFeatureType();
+        this.featureType = featureType;
         this.searchHitIterator = searchHitIterator;
         this.builder = new SimpleFeatureBuilder(featureType);
-        this.parserUtil = new ElasticParserUtil();
+        this.parserUtil = createParserUtil(state);
         this.maxScore = 0;
+        this.plan = getPlan(state, featureType);
     }    
 
     @Override
     public SimpleFeatureType getFeatureType() {
-        return state.getFeatureType();
+        return featureType;
     }
 
     @Override
-    public SimpleFeature next() {
+    public SimpleFeature next() throws IOException {
         final SearchHit hit = searchHitIterator.next();
-        final SimpleFeatureType type = getFeatureType();
-        final Map<String, Object> source = hit.getSource();
-
         final Float score;
         final Float relativeScore;
         if (!Float.isNaN(hit.getScore()) && maxScore>0) {
@@ -83,62 +92,51 @@ public class ElasticFeatureReader implements FeatureReader<SimpleFeatureType, Si
             relativeScore = null;
         }
 
-        for (final AttributeDescriptor descriptor : type.getAttributeDescriptors()) {
-            final String name = descriptor.getType().getName().getLocalPart();
-            final String sourceName = (String) descriptor.getUserData().get(FULL_NAME);
-
-            final SearchHitField field = hit.field(sourceName);
-            List<Object> values = null;
-            if (field != null) {
-                // hit field
-                values = field.values();
+        final String typeName = state.getEntry().getTypeName();
+        final String id = typeName + "." + hit.getId();
+        final SimpleFeature feature;
+        if (lazyFeatures) {
+            feature = new ElasticFeature(featureType, plan, hit, id, score, relativeScore, parserUtil);
+            if (sampleRatio != null) {
+                feature.getUserData().put(SAMPLE_RATIO, sampleRatio);
             }
-            if (values == null && source != null) {
-                // read field from source
-                values = parserUtil.readField(source, sourceName);
+        } else {
+            plan.read(hit, score, relativeScore, builder, parserUtil);
+            if (sampleRatio != null) {
+                builder.featureUserData(SAMPLE_RATIO, sampleRatio);
             }
+            feature = builder.buildFeature(id);
+        }
+        return feature;
+    }
 
-            if (values == null && name.equals("_id")) {
-                builder.set(name, hit.getId());
-            } else if (values == null && name.equals("_index")) {
-                builder.set(name, hit.getIndex());
-            } else if (values == null && name.equals("_type")) {
-                builder.set(name, hit.getType());
-            } else if (values == null && name.equals("_score")) {
-                builder.set(name, score);
-            } else if (values == null && name.equals("_relative_score")) {
-                builder.set(name, relativeScore);
-            } else if (values == null) {
-                // skip missing attribute
-            } else if (Geometry.class.isAssignableFrom(descriptor.getType().getBinding())) {
-                builder.set(name, parserUtil.createGeometry(values.get(0)));
-            } else if (Date.class.isAssignableFrom(descriptor.getType().getBinding())) {
-                Object dataVal = values.get(0);
-                if (dataVal instanceof Double) {
-                    builder.set(name, new Date(Math.round((Double) dataVal)));
-                } else if (dataVal instanceof Integer) {
-                    builder.set(name, new Date((Integer) dataVal));
-                } else if (dataVal instanceof Long) {
-                    builder.set(name, new Date((long) dataVal));
-                } else {
-                    final String format = (String) descriptor.getUserData().get(DATE_FORMAT);
-                    final DateTimeFormatter dateFormatter = Joda.forPattern(format).parser();
-                    Date date = dateFormatter.parseDateTime((String) dataVal).toDate();
-                    builder.set(name, date);
-                }
-            } else if (values.size() == 1) {
-                builder.set(name, values.get(0));
-            } else if (String.class.isAssignableFrom(descriptor.getType().getBinding())) {
-                builder.set(name, Joiner.on(';').join(values));
-            } else {
-                builder.set(name, values);
-            }
+    /**
+     * Parser using packed coordinates when enabled on the data store.
+     */
+    private static ElasticParserUtil createParserUtil(ContentState state) {
+        final boolean packedCoordinates;
+        if (state.getEntry().getDataStore() instanceof ElasticDataStore) {
+            final ElasticDataStore dataStore = (ElasticDataStore) state.getEntry().getDataStore();
+            packedCoordinates = Boolean.TRUE.equals(dataStore.getPackedCoordinates());
+        } else {
+            packedCoordinates = false;
         }
+        return new ElasticParserUtil(packedCoordinates);
+    }
 
-        final String typeName = state.getEntry().getTypeName();
-        final SimpleFeature feature;
-        feature = builder.buildFeature(typeName + "." + hit.getId());
-        return feature;
+    /**
+     * Reader plan for the feature type, shared through the data store when
+     * available.
+     */
+    private static ElasticFeatureReaderPlan getPlan(ContentState state, SimpleFeatureType featureType) {
+        final ElasticFeatureReaderPlan plan;
+        if (state.getEntry().getDataStore() instanceof ElasticDataStore) {
+            final ElasticDataStore dataStore = (ElasticDataStore) state.getEntry().getDataStore();
+            plan = dataStore.getReaderPlan(featureType);
+        } else {
+            plan = new ElasticFeatureReaderPlan(featureType);
+        }
+        return plan;
     }
 
     @Override
@@ -146,6 +144,26 @@ public class ElasticFeatureReader implements FeatureReader<SimpleFeatureType, Si
         return searchHitIterator.hasNext();
     }
 
+    public void setSampleRatio(Double sampleRatio) {
+        this.sampleRatio = sampleRatio;
+    }
+
+    /**
+     * Whether to return features decoding attributes on first access instead
+     * of fully built features.
+     */
+    public void setLazyFeatures(boolean lazyFeatures) {
+        this.lazyFeatures = lazyFeatures;
+    }
+
+    /**
+     * Distance within which geo_shape vertices are merged while decoding, 
+     * or null to decode full resolution geometries.
+     */
+    public void setGeometryDistance(Double geometryDistance) {
+        parserUtil.setSimplificationDistance(geometryDistance != null ? geometryDistance : 0);
+    }
+
     @Override
     public void close() {
         builder = null;
@@ -0,0 +1,223 @@
+/**
+ * This file is hereby placed into the Public Domain. This means anyone is
+ * free to do whatever they wish with this file.
+ */
+package mil.nga.giat.data.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.elasticsearch.search.aggregations.bucket.geogrid.GeoHashGrid;
+import org.elasticsearch.search.aggregations.metrics.NumericMetricsAggregation;
+import org.geotools.data.FeatureReader;
+import org.geotools.data.store.ContentState;
+import org.geotools.feature.AttributeTypeBuilder;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * FeatureReader access to the buckets of a geohash_grid aggregation. Each
+ * feature represents a grid cell, with the cell polygon (if allowed by the
+ * default geometry binding) or cell center as geometry, the number of matching
+ * documents in the cell and optional metric sub-aggregation values. Features
+ * have the requested attributes of the layer and the synthetic document count
+ * attribute, which is not part of the layer schema.
+ */
+public class ElasticFeatureReaderGeohashGrid implements FeatureReader<SimpleFeatureType, SimpleFeature> {
+
+    /**
+     * View parameter used to enable geohash grid aggregation. Value is either
+     * the geohash precision (1-12) or "auto" to derive the precision from the
+     * query bounding box and grid size.
+     */
+    public static final String PRECISION_PARAMETER = "grid";
+
+    /**
+     * View parameter defining the approximate number of grid cells across the
+     * query bounding box, used when precision is "auto".
+     */
+    public static final String SIZE_PARAMETER = "grid_size";
+
+    /**
+     * View parameter defining the metric (avg, min, max or sum) computed for
+     * each numeric attribute in the query.
+     */
+    public static final String METRIC_PARAMETER = "grid_metric";
+
+    /**
+     * Name of the attribute holding the number of documents in a grid cell.
+     */
+    public static final String DOC_COUNT = "_doc_count";
+
+    public static final int DEFAULT_SIZE = 64;
+
+    /**
+     * Maximum number of cells across the query bounding box when precision
+     * is "auto".
+     */
+    public static final int MAX_SIZE = 256;
+
+    /**
+     * Maximum number of cells returned, the cells with the most documents
+     * being returned first.
+     */
+    public static final int MAX_CELLS = MAX_SIZE*MAX_SIZE;
+
+    public static final int MAX_PRECISION = 12;
+
+    static final String METRIC_AGGREGATION_PREFIX = "metric_";
+
+    private static final Envelope WORLD = new Envelope(-180, 180, -90, 90);
+
+    private final ContentState state;
+
+    private final SimpleFeatureType featureType;
+
+    private final List<String> metricAttributes;
+
+    private final boolean cellGeometry;
+
+    private final String geometryName;
+
+    private SimpleFeatureBuilder builder;
+
+    private Iterator<GeoHashGrid.Bucket> bucketIterator;
+
+    private ElasticParserUtil parserUtil;
+
+    /**
+     * @param contentState Content state of the feature source
+     * @param featureType Requested attributes of the layer
+     * @param grid Geohash grid aggregation
+     * @param metricAttributes Attributes of the metric sub-aggregations, in order
+     */
+    public ElasticFeatureReaderGeohashGrid(ContentState contentState, SimpleFeatureType featureType,
+            GeoHashGrid grid, List<String> metricAttributes) {
+        this.state = contentState;
+        this.featureType = getGridFeatureType(featureType, metricAttributes);
+        this.bucketIterator = grid.getBuckets().iterator();
+        this.metricAttributes = metricAttributes;
+        this.builder = new SimpleFeatureBuilder(this.featureType);
+        this.parserUtil = new ElasticParserUtil();
+
+        final GeometryDescriptor geometryDescriptor = this.featureType.getGeometryDescriptor();
+        if (geometryDescriptor != null) {
+            this.geometryName = geometryDescriptor.getLocalName();
+            final Class<?> binding = geometryDescriptor.getType().getBinding();
+            this.cellGeometry = binding.isAssignableFrom(Polygon.class);
+        } else {
+            this.geometryName = null;
+            this.cellGeometry = false;
+        }
+    }
+
+    /**
+     * Feature type with the document count attribute added to the given 
+     * attributes, metric attributes being bound to Double since metrics such
+     * as averages are fractional.
+     */
+    static SimpleFeatureType getGridFeatureType(SimpleFeatureType featureType, List<String> metricAttributes) {
+        final SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+        typeBuilder.init(featureType);
+        final List<AttributeDescriptor> descriptors = new ArrayList<>();
+        for (final AttributeDescriptor descriptor : featureType.getAttributeDescriptors()) {
+            if (metricAttributes.contains(descriptor.getLocalName())) {
+                final AttributeTypeBuilder attributeBuilder = new AttributeTypeBuilder();
+                attributeBuilder.init(descriptor);
+                attributeBuilder.setBinding(Double.class);
+                descriptors.add(attributeBuilder.buildDescriptor(descriptor.getLocalName()));
+            } else {
+                descriptors.add(descriptor);
+            }
+        }
+        typeBuilder.setAttributes(descriptors);
+        if (featureType.getDescriptor(DOC_COUNT) == null) {
+            typeBuilder.add(DOC_COUNT, Long.class);
+        }
+        return typeBuilder.buildFeatureType();
+    }
+
+    @Override
+    public SimpleFeatureType getFeatureType() {
+        return featureType;
+    }
+
+    @Override
+    public SimpleFeature next() {
+        final GeoHashGrid.Bucket bucket = bucketIterator.next();
+        final String geohash = bucket.getKey();
+
+        if (geometryName != null) {
+            final Geometry geometry;
+            if (cellGeometry) {
+                geometry = parserUtil.createGeohashCell(geohash);
+            } else {
+                geometry = parserUtil.createGeometry(geohash);
+            }
+            builder.set(geometryName, geometry);
+        }
+
+        builder.set(DOC_COUNT, bucket.getDocCount());
+
+        for (int i=0; i<metricAttributes.size(); i++) {
+            final NumericMetricsAggregation.SingleValue metric;
+            metric = bucket.getAggregations().get(METRIC_AGGREGATION_PREFIX + i);
+            final double value = metric.value();
+            if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                builder.set(metricAttributes.get(i), value);
+            }
+        }
+
+        final String typeName = state.getEntry().getTypeName();
+        return builder.buildFeature(typeName + "." + geohash);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return bucketIterator.hasNext();
+    }
+
+    @Override
+    public void close() {
+        builder = null;
+        bucketIterator = null;
+    }
+
+    /**
+     * Highest geohash precision that results in no more than the given number
+     * of cells across the width and height of the envelope.
+     *
+     * @param envelope Envelope (EPSG:4326)
+     * @param size Number of cells
+     * @return Geohash precision
+     */
+    public static int getPrecision(Envelope envelope, int size) {
+        Envelope bbox = WORLD;
+        if (envelope != null && !envelope.isNull()) {
+            bbox = envelope.intersection(WORLD);
+            if (bbox.isNull() || bbox.getWidth() == 0 || bbox.getHeight() == 0) {
+                bbox = WORLD;
+            }
+        }
+        int precision = 1;
+        for (int p=2; p<=MAX_PRECISION; p++) {
+            final double cellWidth = 360. / Math.pow(2, Math.ceil(5*p/2.));
+            final double cellHeight = 180. / Math.pow(2, Math.floor(5*p/2.));
+            if (bbox.getWidth()/cellWidth > size || bbox.getHeight()/cellHeight > size) {
+                break;
+            }
+            precision = p;
+        }
+        return precision;
+    }
+
+}
@@ -0,0 +1,178 @@
+/**
+ * This file is hereby placed into the Public Domain. This means anyone is
+ * free to do whatever they wish with this file.
+ */
+package mil.nga.giat.data.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.tophits.TopHits;
+import org.elasticsearch.search.aggregations.metrics.tophits.TopHitsBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.geotools.data.FeatureReader;
+import org.geotools.data.store.ContentState;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * FeatureReader access to the top document of each group, using a terms
+ * aggregation on the group field with a top_hits sub-aggregation. Groups are
+ * requested in pages ordered by group key, each page starting after the last
+ * key of the previous page.
+ */
+public class ElasticFeatureReaderGroup implements FeatureReader<SimpleFeatureType, SimpleFeature> {
+
+    private final static Logger LOGGER = Logging.getLogger(ElasticFeatureReaderGroup.class);
+
+    private final static int PAGE_SIZE = 1000;
+
+    private final static String GROUP_AGGREGATION = "group";
+
+    private final static String TOP_HITS_AGGREGATION = "top";
+
+    private final ContentState contentState;
+
+    private final SimpleFeatureType featureType;
+
+    private final QueryBuilder query;
+
+    private final String groupBy;
+
+    private final String groupSort;
+
+    private final String[] sourceIncludes;
+
+    private final String[] fieldDataFields;
+
+    private final int maxFeatures;
+
+    private ElasticFeatureReader delegate;
+
+    private String lastKey;
+
+    private int numFeatures;
+
+    private boolean lastPage;
+
+    private boolean lazyFeatures;
+
+    private Double geometryDistance;
+
+    public ElasticFeatureReaderGroup(ContentState contentState, SimpleFeatureType featureType, 
+            QueryBuilder query, String groupBy, String groupSort, String[] sourceIncludes, 
+            String[] fieldDataFields, int maxFeatures) throws IOException {
+        this.contentState = contentState;
+        this.featureType = featureType;
+        this.query = query;
+        this.groupBy = groupBy;
+        this.groupSort = groupSort;
+        this.sourceIncludes = sourceIncludes;
+        this.fieldDataFields = fieldDataFields;
+        this.maxFeatures = maxFeatures;
+        this.numFeatures = 0;
+        advancePage();
+    }
+
+    private void advancePage() {
+        final ElasticDataStore dataStore;
+        dataStore = (ElasticDataStore) contentState.getEntry().getDataStore();
+        final String docType = dataStore.getDocType(contentState.getEntry().getName());
+
+        final QueryBuilder pageQuery;
+        if (lastKey != null) {
+            pageQuery = QueryBuilders.filteredQuery(query, FilterBuilders.rangeFilter(groupBy).gt(lastKey));
+        } else {
+            pageQuery = query;
+        }
+        final TopHitsBuilder topHits = AggregationBuilders.topHits(TOP_HITS_AGGREGATION).setSize(1)
+                .addSort(groupSort, SortOrder.DESC);
+        if (sourceIncludes.length > 0) {
+            topHits.setFetchSource(sourceIncludes, null);
+        } else {
+            topHits.setFetchSource(false);
+        }
+        for (final String field : fieldDataFields) {
+            topHits.addFieldDataField(field);
+        }
+        final SearchResponse searchResponse = dataStore.getClient()
+                .prepareSearch(dataStore.getSearchIndices()).setTypes(docType)
+                .setSearchType(SearchType.COUNT)
+                .setQuery(pageQuery)
+                .addAggregation(AggregationBuilders.terms(GROUP_AGGREGATION).field(groupBy)
+                        .size(PAGE_SIZE).order(Terms.Order.term(true))
+                        .subAggregation(topHits))
+                .execute().actionGet();
+
+        final Terms groups = searchResponse.getAggregations().get(GROUP_AGGREGATION);
+        final List<SearchHit> hits = new ArrayList<>();
+        for (final Terms.Bucket bucket : groups.getBuckets()) {
+            final TopHits topHits = bucket.getAggregations().get(TOP_HITS_AGGREGATION);
+            hits.addAll(Arrays.asList(topHits.getHits().getHits()));
+            lastKey = bucket.getKey();
+        }
+        delegate = new ElasticFeatureReader(contentState, featureType, hits.iterator());
+        delegate.setLazyFeatures(lazyFeatures);
+        delegate.setGeometryDistance(geometryDistance);
+        lastPage = groups.getBuckets().size() < PAGE_SIZE;
+        LOGGER.fine("Group page numGroups=" + hits.size() + " (lastKey=" + lastKey + ")");
+    }
+
+    private boolean hasNextGroup() {
+        if (!delegate.hasNext() && !lastPage) {
+            advancePage();
+        }
+        return delegate.hasNext();
+    }
+
+    public void setLazyFeatures(boolean lazyFeatures) {
+        this.lazyFeatures = lazyFeatures;
+        delegate.setLazyFeatures(lazyFeatures);
+    }
+
+    public void setGeometryDistance(Double geometryDistance) {
+        this.geometryDistance = geometryDistance;
+        delegate.setGeometryDistance(geometryDistance);
+    }
+
+    @Override
+    public SimpleFeatureType getFeatureType() {
+        return delegate.getFeatureType();
+    }
+
+    @Override
+    public SimpleFeature next() throws IOException {
+        final SimpleFeature feature;
+        if (hasNext()) {
+            numFeatures++;
+            feature = delegate.next();
+        } else {
+            throw new NoSuchElementException();
+        }
+        return feature;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        return numFeatures<maxFeatures && hasNextGroup();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+}
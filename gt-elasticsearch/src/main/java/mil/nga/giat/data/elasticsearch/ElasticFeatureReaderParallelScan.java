@@ -0,0 +1,326 @@
+/**
+ * This file is hereby placed into the Public Domain. This means anyone is
+ * free to do whatever they wish with this file.
+ */
+package mil.nga.giat.data.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Logger;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+import org.geotools.data.FeatureReader;
+import org.geotools.data.store.ContentState;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import mil.nga.giat.data.elasticsearch.ElasticScrollRegistry.ScrollReference;
+
+/**
+ * Feature reader over several scans run concurrently, typically one per
+ * shard, merging their pages in arrival order. At most the given number
+ * of scans are scrolled at a time, each requesting its next page as soon
+ * as the previous one arrived as long as the number of buffered pages is
+ * below twice that number.
+ */
+public class ElasticFeatureReaderParallelScan implements FeatureReader<SimpleFeatureType, SimpleFeature> {
+
+    private final static Logger LOGGER = Logging.getLogger(ElasticFeatureReaderParallelScan.class);
+
+    private static final Object SLICE_DONE = new Object();
+
+    private final ContentState contentState;
+
+    private final SimpleFeatureType featureType;
+
+    private final int maxFeatures;
+
+    private final int parallelism;
+
+    private final int maxPages;
+
+    private final int numSlices;
+
+    private final Deque<SearchRequestBuilder> pendingSlices;
+
+    private final List<Slice> slices;
+
+    private final List<Slice> waitingSlices;
+
+    private final BlockingQueue<Object> pages;
+
+    private ElasticFeatureReader delegate;
+
+    private int numFeatures;
+
+    private int readHits;
+
+    private int fetchedHits;
+
+    private int activeSlices;
+
+    private int doneSlices;
+
+    private boolean closed;
+
+    private boolean lazyFeatures;
+
+    private Double geometryDistance;
+
+    /**
+     * @param contentState Content state of the feature source
+     * @param featureType Feature type of the features read
+     * @param sliceRequests Scan requests, each returning a distinct part of the results
+     * @param parallelism Maximum number of scans scrolled concurrently
+     * @param maxFeatures Maximum number of features returned
+     */
+    public ElasticFeatureReaderParallelScan(ContentState contentState, SimpleFeatureType featureType,
+            List<SearchRequestBuilder> sliceRequests, int parallelism, int maxFeatures) {
+        this.contentState = contentState;
+        this.featureType = featureType;
+        this.maxFeatures = maxFeatures;
+        this.parallelism = Math.max(1, parallelism);
+        this.maxPages = 2*this.parallelism;
+        this.numSlices = sliceRequests.size();
+        this.pendingSlices = new ArrayDeque<>(sliceRequests);
+        this.slices = new ArrayList<>();
+        this.waitingSlices = new ArrayList<>();
+        this.pages = new LinkedBlockingQueue<>();
+        this.delegate = new ElasticFeatureReader(contentState, featureType,
+                Collections.<SearchHit>emptyIterator());
+        startSlices();
+    }
+
+    private ElasticDataStore getDataStore() {
+        return (ElasticDataStore) contentState.getEntry().getDataStore();
+    }
+
+    public void setLazyFeatures(boolean lazyFeatures) {
+        this.lazyFeatures = lazyFeatures;
+        delegate.setLazyFeatures(lazyFeatures);
+    }
+
+    public void setGeometryDistance(Double geometryDistance) {
+        this.geometryDistance = geometryDistance;
+        delegate.setGeometryDistance(geometryDistance);
+    }
+
+    /**
+     * Starts pending scans up to the parallelism, unless enough hits have 
+     * already been fetched in which case the pending scans are dropped.
+     */
+    private synchronized void startSlices() {
+        if (!closed && fetchedHits >= maxFeatures) {
+            while (pendingSlices.poll() != null) {
+                pages.add(SLICE_DONE);
+            }
+        }
+        while (!closed && activeSlices < parallelism && !pendingSlices.isEmpty()) {
+            final Slice slice = new Slice();
+            slices.add(slice);
+            activeSlices++;
+            slice.start(pendingSlices.poll());
+        }
+    }
+
+    /**
+     * Resumes the scans waiting for buffered pages to be read.
+     */
+    private synchronized void resumeSlices() {
+        final List<Slice> resumed = new ArrayList<>(waitingSlices);
+        waitingSlices.clear();
+        for (final Slice slice : resumed) {
+            slice.fetchPage();
+        }
+    }
+
+    private void advance() throws IOException {
+        final Object page;
+        try {
+            page = pages.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for scan page", e);
+        }
+        resumeSlices();
+        if (page == SLICE_DONE) {
+            doneSlices++;
+        } else if (page instanceof Throwable) {
+            throw new IOException("Error scrolling search", (Throwable) page);
+        } else {
+            final SearchHit[] searchHits = ((SearchResponse) page).getHits().hits();
+            final List<SearchHit> hits;
+            if (readHits+searchHits.length <= maxFeatures) {
+                hits = Arrays.asList(searchHits);
+            } else {
+                hits = Arrays.asList(searchHits).subList(0, maxFeatures-readHits);
+            }
+            readHits += hits.size();
+            delegate = new ElasticFeatureReader(contentState, featureType, hits.iterator());
+            delegate.setLazyFeatures(lazyFeatures);
+            delegate.setGeometryDistance(geometryDistance);
+            LOGGER.fine("Scan numHits=" + hits.size() + " (total=" + readHits + ")");
+            if (readHits >= maxFeatures) {
+                stopSlices();
+            }
+        }
+    }
+
+    /**
+     * Stops all scans and clears their scrolls.
+     */
+    private synchronized void stopSlices() {
+        closed = true;
+        pages.clear();
+        pendingSlices.clear();
+        waitingSlices.clear();
+        for (final Slice slice : slices) {
+            slice.release();
+        }
+    }
+
+    @Override
+    public SimpleFeatureType getFeatureType() {
+        return featureType;
+    }
+
+    @Override
+    public SimpleFeature next() throws IOException {
+        final SimpleFeature feature;
+        if (hasNext()) {
+            numFeatures++;
+            feature = delegate.next();
+        } else {
+            throw new NoSuchElementException();
+        }
+        return feature;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        while (!delegate.hasNext() && readHits < maxFeatures && doneSlices < numSlices) {
+            advance();
+        }
+        return delegate.hasNext() && numFeatures < maxFeatures;
+    }
+
+    @Override
+    public void close() throws IOException {
+        stopSlices();
+        delegate.close();
+    }
+
+    /**
+     * Scan of a part of the results, requesting its pages one at a time
+     * since each scroll request needs the scroll id of the previous one.
+     */
+    private class Slice implements ActionListener<SearchResponse> {
+
+        private ScrollReference scroll;
+
+        private boolean scanned;
+
+        void start(SearchRequestBuilder request) {
+            request.execute(this);
+        }
+
+        /**
+         * Requests the next page unless the reader is closed, enough hits
+         * have been fetched or too many pages are buffered, in which case
+         * the scan waits to be resumed.
+         */
+        void fetchPage() {
+            synchronized (ElasticFeatureReaderParallelScan.this) {
+                if (closed) {
+                    release();
+                    return;
+                }
+                if (fetchedHits >= maxFeatures) {
+                    finish();
+                    return;
+                }
+                if (pages.size() >= maxPages) {
+                    waitingSlices.add(this);
+                    return;
+                }
+            }
+            final ElasticDataStore dataStore = getDataStore();
+            dataStore.getClient()
+                    .prepareSearchScroll(scroll.getScrollId())
+                    .setScroll(TimeValue.timeValueSeconds(dataStore.getScrollTime()))
+                    .execute(this);
+        }
+
+        @Override
+        public void onResponse(SearchResponse response) {
+            final ElasticScrollRegistry scrollRegistry = getDataStore().getScrollRegistry();
+            synchronized (ElasticFeatureReaderParallelScan.this) {
+                if (scroll == null) {
+                    scroll = scrollRegistry.register(ElasticFeatureReaderParallelScan.this,
+                            response.getScrollId());
+                } else if (closed) {
+                    // scroll already released with the previous scroll id
+                    if (!response.getScrollId().equals(scroll.getScrollId())) {
+                        scrollRegistry.clearScroll(response.getScrollId());
+                    }
+                    return;
+                } else {
+                    scrollRegistry.update(scroll, response.getScrollId());
+                }
+                if (closed) {
+                    release();
+                    return;
+                }
+                final int numHits = response.getHits().hits().length;
+                if (numHits > 0) {
+                    fetchedHits += numHits;
+                    pages.add(response);
+                } else if (scanned) {
+                    finish();
+                    return;
+                }
+                // the initial scan response has no hits
+                scanned = true;
+            }
+            fetchPage();
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            synchronized (ElasticFeatureReaderParallelScan.this) {
+                release();
+                if (!closed) {
+                    pages.add(e);
+                }
+            }
+        }
+
+        private void finish() {
+            release();
+            activeSlices--;
+            pages.add(SLICE_DONE);
+            startSlices();
+        }
+
+        void release() {
+            if (scroll != null) {
+                getDataStore().getScrollRegistry().release(scroll);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,313 @@
+/**
+ * This file is hereby placed into the Public Domain. This means anyone is
+ * free to do whatever they wish with this file.
+ */
+package mil.nga.giat.data.elasticsearch;
+
+import static mil.nga.giat.data.elasticsearch.ElasticLayerConfiguration.DATE_FORMAT;
+import static mil.nga.giat.data.elasticsearch.ElasticLayerConfiguration.FULL_NAME;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.elasticsearch.common.base.Joiner;
+import org.elasticsearch.common.joda.Joda;
+import org.elasticsearch.common.joda.time.format.DateTimeFormatter;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Attribute accessors compiled once per feature type and shared by all
+ * readers of the type. Each accessor resolves the attribute value from the
+ * hit fields, the decoded source or the hit metadata and converts it to the
+ * attribute binding, so that per hit no descriptor user data, binding or
+ * attribute name needs to be inspected.
+ */
+public class ElasticFeatureReaderPlan {
+
+    private static final Joiner JOINER = Joiner.on(';');
+
+    private final SimpleFeatureType featureType;
+
+    private final AttributeAccessor[] accessors;
+
+    private final ElasticSourceDecoder sourceDecoder;
+
+    public ElasticFeatureReaderPlan(SimpleFeatureType featureType) {
+        this.featureType = featureType;
+        final int count = featureType.getAttributeCount();
+        this.accessors = new AttributeAccessor[count];
+        final List<String> fieldNames = new ArrayList<>();
+        for (int i=0; i<count; i++) {
+            final AttributeDescriptor descriptor = featureType.getDescriptor(i);
+            final String sourceName = (String) descriptor.getUserData().get(FULL_NAME);
+            fieldNames.add(sourceName);
+            accessors[i] = createAccessor(i, descriptor, sourceName);
+        }
+        this.sourceDecoder = new ElasticSourceDecoder(fieldNames);
+    }
+
+    public SimpleFeatureType getFeatureType() {
+        return featureType;
+    }
+
+    /**
+     * Whether the plan can read the feature type, i.e. the feature type has
+     * the same attribute descriptors as the plan feature type.
+     */
+    public boolean isCompatible(SimpleFeatureType featureType) {
+        if (featureType == this.featureType) {
+            return true;
+        }
+        if (featureType.getAttributeCount() != accessors.length) {
+            return false;
+        }
+        for (int i=0; i<accessors.length; i++) {
+            if (featureType.getDescriptor(i) != this.featureType.getDescriptor(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the attribute values of the hit on the builder.
+     * @param hit Search hit
+     * @param score Hit score, or null if not available
+     * @param relativeScore Hit score relative to the max score, or null if not available
+     * @param builder Feature builder for the plan feature type
+     * @param parserUtil Parser used to create geometries
+     */
+    public void read(SearchHit hit, Float score, Float relativeScore, SimpleFeatureBuilder builder,
+            ElasticParserUtil parserUtil) throws IOException {
+        final List<Object>[] sourceValues = decodeSource(hit);
+        for (int i=0; i<accessors.length; i++) {
+            final Object value = readAttribute(i, hit, sourceValues, score, relativeScore, parserUtil);
+            if (value != null) {
+                builder.set(i, value);
+            }
+        }
+    }
+
+    /**
+     * Decodes the source values of all attributes of the hit.
+     * @param hit Search hit
+     * @return Source values indexed by attribute, or null if the hit has no source
+     */
+    public List<Object>[] decodeSource(SearchHit hit) throws IOException {
+        final List<Object>[] sourceValues;
+        if (hit.sourceRef() != null) {
+            sourceValues = sourceDecoder.decode(hit.sourceRef());
+        } else {
+            sourceValues = null;
+        }
+        return sourceValues;
+    }
+
+    /**
+     * Reads a single attribute value of the hit, not yet converted to the
+     * attribute binding.
+     * @param index Attribute index
+     * @param hit Search hit
+     * @param sourceValues Decoded source values
+     * @param score Hit score, or null if not available
+     * @param relativeScore Hit score relative to the max score, or null if not available
+     * @param parserUtil Parser used to create geometries
+     * @return Attribute value or null if missing
+     */
+    public Object readAttribute(int index, SearchHit hit, List<Object>[] sourceValues, Float score,
+            Float relativeScore, ElasticParserUtil parserUtil) {
+        final AttributeAccessor accessor = accessors[index];
+        List<Object> values = null;
+        if (!hit.getFields().isEmpty()) {
+            // hit field
+            final SearchHitField field = hit.field(accessor.sourceName);
+            if (field != null) {
+                values = field.values();
+            }
+        }
+        if (values == null && sourceValues != null) {
+            // field decoded from source
+            values = sourceValues[index];
+        }
+
+        final Object value;
+        if (values != null) {
+            value = accessor.convert(values, parserUtil);
+        } else {
+            value = accessor.metadata(hit, score, relativeScore);
+        }
+        return value;
+    }
+
+    private static AttributeAccessor createAccessor(int index, AttributeDescriptor descriptor,
+            String sourceName) {
+        final String name = descriptor.getLocalName();
+        final Class<?> binding = descriptor.getType().getBinding();
+
+        final AttributeAccessor accessor;
+        if (name.equals("_id") || name.equals("_index") || name.equals("_type")
+                || name.equals("_score") || name.equals("_relative_score")) {
+            accessor = new MetadataAccessor(index, sourceName, name);
+        } else if (Geometry.class.isAssignableFrom(binding)) {
+            accessor = new GeometryAccessor(index, sourceName);
+        } else if (Date.class.isAssignableFrom(binding)) {
+            final String format = (String) descriptor.getUserData().get(DATE_FORMAT);
+            accessor = new DateAccessor(index, sourceName, format);
+        } else if (String.class.isAssignableFrom(binding)) {
+            accessor = new JoiningAccessor(index, sourceName);
+        } else {
+            accessor = new AttributeAccessor(index, sourceName);
+        }
+        return accessor;
+    }
+
+    /**
+     * Default accessor, returning single values as is and multiple values as
+     * a list.
+     */
+    private static class AttributeAccessor {
+
+        protected final int index;
+
+        protected final String sourceName;
+
+        AttributeAccessor(int index, String sourceName) {
+            this.index = index;
+            this.sourceName = sourceName;
+        }
+
+        Object convert(List<Object> values, ElasticParserUtil parserUtil) {
+            final Object value;
+            if (values.size() == 1) {
+                value = values.get(0);
+            } else {
+                value = values;
+            }
+            return value;
+        }
+
+        /**
+         * Value when the field is missing from both the hit fields and source.
+         */
+        Object metadata(SearchHit hit, Float score, Float relativeScore) {
+            return null;
+        }
+
+    }
+
+    private static class MetadataAccessor extends AttributeAccessor {
+
+        private final String name;
+
+        MetadataAccessor(int index, String sourceName, String name) {
+            super(index, sourceName);
+            this.name = name;
+        }
+
+        @Override
+        Object metadata(SearchHit hit, Float score, Float relativeScore) {
+            final Object value;
+            switch (name) {
+            case "_id":
+                value = hit.getId();
+                break;
+            case "_index":
+                value = hit.getIndex();
+                break;
+            case "_type":
+                value = hit.getType();
+                break;
+            case "_score":
+                value = score;
+                break;
+            default:
+                value = relativeScore;
+            }
+            return value;
+        }
+
+    }
+
+    private static class GeometryAccessor extends AttributeAccessor {
+
+        GeometryAccessor(int index, String sourceName) {
+            super(index, sourceName);
+        }
+
+        @Override
+        Object convert(List<Object> values, ElasticParserUtil parserUtil) {
+            return parserUtil.createGeometry(values.get(0));
+        }
+
+    }
+
+    private static class DateAccessor extends AttributeAccessor {
+
+        private final String format;
+
+        private DateTimeFormatter dateParser;
+
+        DateAccessor(int index, String sourceName, String format) {
+            super(index, sourceName);
+            this.format = format;
+        }
+
+        @Override
+        Object convert(List<Object> values, ElasticParserUtil parserUtil) {
+            final Object dataVal = values.get(0);
+            final Date date;
+            if (dataVal instanceof Double) {
+                date = new Date(Math.round((Double) dataVal));
+            } else if (dataVal instanceof Integer) {
+                date = new Date((Integer) dataVal);
+            } else if (dataVal instanceof Long) {
+                date = new Date((long) dataVal);
+            } else {
+                date = getDateParser().parseDateTime((String) dataVal).toDate();
+            }
+            return date;
+        }
+
+        /**
+         * Date parser for the format, created on first use since formatters
+         * are immutable and can be shared.
+         */
+        private DateTimeFormatter getDateParser() {
+            DateTimeFormatter parser = dateParser;
+            if (parser == null) {
+                parser = Joda.forPattern(format).parser();
+                dateParser = parser;
+            }
+            return parser;
+        }
+
+    }
+
+    private static class JoiningAccessor extends AttributeAccessor {
+
+        JoiningAccessor(int index, String sourceName) {
+            super(index, sourceName);
+        }
+
+        @Override
+        Object convert(List<Object> values, ElasticParserUtil parserUtil) {
+            final Object value;
+            if (values.size() == 1) {
+                value = values.get(0);
+            } else {
+                value = JOINER.join(values);
+            }
+            return value;
+        }
+
+    }
+
+}
@@ -4,8 +4,11 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Logger;
 
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.search.SearchHit;
@@ -15,11 +18,25 @@ import org.geotools.util.logging.Logging;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 
+import mil.nga.giat.data.elasticsearch.ElasticScrollRegistry.ScrollReference;
+
+/**
+ * Feature reader over a scroll, one page at a time, either a scan or a
+ * sorted scroll whose initial search response holds the first page. When the data store
+ * scroll prefetch is enabled, the next pages are requested in the
+ * background while the current page is being read, buffering up to the
+ * configured number of pages. The scroll is registered with the data store
+ * scroll registry and cleared as soon as all pages have been read or the
+ * reader is closed. Full pages are reported to the data store scroll sizer
+ * to adapt the scroll size of the next scans of the layer.
+ */
 public class ElasticFeatureReaderScroll implements FeatureReader<SimpleFeatureType, SimpleFeature> {
     
     private final static Logger LOGGER = Logging.getLogger(ElasticFeatureReaderScroll.class);
     
     private final ContentState contentState;
+
+    private final SimpleFeatureType featureType;
     
     private final int maxFeatures;
     
@@ -30,22 +47,107 @@ public class ElasticFeatureReaderScroll implements FeatureReader<SimpleFeatureTy
     private int numFeatures;
     
     private boolean lastScroll;
+
+    private boolean lazyFeatures;
+
+    private Double geometryDistance;
+
+    private final int prefetch;
+
+    private final BlockingQueue<Object> pages;
+
+    private String fetchScrollId;
+
+    private int fetchedHits;
+
+    private boolean fetching;
+
+    private boolean fetchedAll;
+
+    private boolean closed;
+
+    private final ScrollReference scroll;
+
+    private final Integer pageSize;
+
+    private int maxPageHits;
+
+    private long fetchStart;
+
+    private SearchResponse firstPage;
     
-    public ElasticFeatureReaderScroll(ContentState contentState, String scrollId, int maxFeatures) {
+    public ElasticFeatureReaderScroll(ContentState contentState, String scrollId, int maxFeatures) 
+            throws IOException {
+        this(contentState, contentState.getFeatureType(), scrollId, maxFeatures);
+    }
+
+    public ElasticFeatureReaderScroll(ContentState contentState, SimpleFeatureType featureType, 
+            String scrollId, int maxFeatures) throws IOException {
+        this(contentState, featureType, scrollId, null, maxFeatures);
+    }
+
+    /**
+     * Reader over a scroll whose initial search response already holds the
+     * first page, as for scrolls sorted with query_then_fetch.
+     */
+    public ElasticFeatureReaderScroll(ContentState contentState, SimpleFeatureType featureType, 
+            SearchResponse searchResponse, int maxFeatures) throws IOException {
+        this(contentState, featureType, searchResponse.getScrollId(), searchResponse, maxFeatures);
+    }
+
+    private ElasticFeatureReaderScroll(ContentState contentState, SimpleFeatureType featureType, 
+            String scrollId, SearchResponse firstPage, int maxFeatures) throws IOException {
         this.contentState = contentState;
+        this.featureType = featureType;
         this.nextScrollId = scrollId;
         this.maxFeatures = maxFeatures;
         this.numFeatures = 0;
-        advanceScroll();
+        this.firstPage = firstPage;
+        final ElasticDataStore dataStore = getDataStore();
+        if (dataStore.getScrollPrefetch() != null && dataStore.getScrollPrefetch() > 0) {
+            this.prefetch = dataStore.getScrollPrefetch();
+            this.pages = new LinkedBlockingQueue<>();
+            this.fetchScrollId = scrollId;
+            if (firstPage != null) {
+                // prefetching starts after the first page
+                this.fetchedHits = firstPage.getHits().hits().length;
+                this.fetchedAll = fetchedHits == 0 || fetchedHits >= maxFeatures;
+            }
+        } else {
+            this.prefetch = 0;
+            this.pages = null;
+        }
+        this.pageSize = dataStore.getScrollSizer().getSize(contentState.getEntry().getTypeName());
+        this.scroll = dataStore.getScrollRegistry().register(this, scrollId);
+        try {
+            advanceScroll();
+        } catch (IOException | RuntimeException e) {
+            dataStore.getScrollRegistry().release(scroll);
+            throw e;
+        }
+    }
+
+    private ElasticDataStore getDataStore() {
+        return (ElasticDataStore) contentState.getEntry().getDataStore();
     }
     
-    private void advanceScroll() {
-        final ElasticDataStore dataStore;
-        dataStore = (ElasticDataStore) contentState.getEntry().getDataStore();
-        final SearchResponse searchResponse = dataStore.getClient()
-                .prepareSearchScroll(nextScrollId)
-                .setScroll(TimeValue.timeValueSeconds(dataStore.getScrollTime()))
-                .execute().actionGet();
+    private void advanceScroll() throws IOException {
+        final SearchResponse searchResponse;
+        if (firstPage != null) {
+            searchResponse = firstPage;
+            firstPage = null;
+        } else if (prefetch > 0) {
+            searchResponse = takePage();
+        } else {
+            final ElasticDataStore dataStore = getDataStore();
+            final long start = System.nanoTime();
+            searchResponse = dataStore.getClient()
+                    .prepareSearchScroll(nextScrollId)
+                    .setScroll(TimeValue.timeValueSeconds(dataStore.getScrollTime()))
+                    .execute().actionGet();
+            measurePage(searchResponse, System.nanoTime() - start);
+            getDataStore().getScrollRegistry().update(scroll, searchResponse.getScrollId());
+        }
         final int numHits = searchResponse.getHits().hits().length;
         final List<SearchHit> hits;
         if (numFeatures+numHits <= maxFeatures) {
@@ -54,12 +156,129 @@ public class ElasticFeatureReaderScroll implements FeatureReader<SimpleFeatureTy
             final int n = maxFeatures-numFeatures;
             hits = Arrays.asList(searchResponse.getHits().hits()).subList(0,n);
         }
-        delegate = new ElasticFeatureReader(contentState, hits.iterator());
+        delegate = new ElasticFeatureReader(contentState, featureType, hits.iterator());
+        delegate.setLazyFeatures(lazyFeatures);
+        delegate.setGeometryDistance(geometryDistance);
         nextScrollId = searchResponse.getScrollId();
         lastScroll = numHits == 0 || numFeatures+hits.size()>=maxFeatures;
+        if (lastScroll) {
+            getDataStore().getScrollRegistry().release(scroll);
+        }
         LOGGER.fine("Scoll numHits=" + hits.size() + " (total=" + numFeatures+hits.size());
     }
+
+    /**
+     * Reports the source bytes and round trip time of the page to the
+     * scroll sizer, ignoring the last partial page.
+     */
+    private void measurePage(SearchResponse response, long nanos) {
+        final SearchHit[] hits = response.getHits().hits();
+        if (pageSize == null || hits.length == 0 || hits.length < maxPageHits) {
+            return;
+        }
+        maxPageHits = hits.length;
+        long bytes = 0;
+        for (final SearchHit hit : hits) {
+            if (hit.sourceRef() != null) {
+                bytes += hit.sourceRef().length();
+            }
+        }
+        getDataStore().getScrollSizer().update(contentState.getEntry().getTypeName(), pageSize, 
+                bytes, nanos / 1000000);
+    }
+
+    /**
+     * Takes the next prefetched page, waiting for it if not yet available,
+     * and requests further pages to refill the buffer.
+     */
+    private SearchResponse takePage() throws IOException {
+        fetchPage();
+        final Object page;
+        try {
+            page = pages.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for scroll page", e);
+        }
+        fetchPage();
+        if (page instanceof Throwable) {
+            throw new IOException("Error scrolling search", (Throwable) page);
+        }
+        return (SearchResponse) page;
+    }
+
+    /**
+     * Requests the next page in the background unless a request is already
+     * pending, the buffer is full, all pages have been fetched or the reader
+     * is closed. Pages are requested one at a time since each request needs
+     * the scroll id returned by the previous one.
+     */
+    private synchronized void fetchPage() {
+        if (closed || fetching || fetchedAll || pages.size() >= prefetch) {
+            return;
+        }
+        fetching = true;
+        fetchStart = System.nanoTime();
+        final ElasticDataStore dataStore = getDataStore();
+        dataStore.getClient()
+                .prepareSearchScroll(fetchScrollId)
+                .setScroll(TimeValue.timeValueSeconds(dataStore.getScrollTime()))
+                .execute(new ActionListener<SearchResponse>() {
+                    @Override
+                    public void onResponse(SearchResponse response) {
+                        onPage(response);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        onPageFailure(e);
+                    }
+                });
+    }
+
+    private synchronized void onPage(SearchResponse response) {
+        fetching = false;
+        final ElasticScrollRegistry scrollRegistry = getDataStore().getScrollRegistry();
+        if (closed) {
+            // scroll already released with the previous scroll id
+            if (!response.getScrollId().equals(scroll.getScrollId())) {
+                scrollRegistry.clearScroll(response.getScrollId());
+            }
+            return;
+        }
+        measurePage(response, System.nanoTime() - fetchStart);
+        final int numHits = response.getHits().hits().length;
+        fetchScrollId = response.getScrollId();
+        scrollRegistry.update(scroll, fetchScrollId);
+        fetchedHits += numHits;
+        fetchedAll = numHits == 0 || fetchedHits >= maxFeatures;
+        pages.add(response);
+        if (fetchedAll) {
+            scrollRegistry.release(scroll);
+        } else {
+            fetchPage();
+        }
+    }
+
+    private synchronized void onPageFailure(Throwable e) {
+        fetching = false;
+        fetchedAll = true;
+        getDataStore().getScrollRegistry().release(scroll);
+        if (!closed) {
+            pages.add(e);
+        }
+    }
     
+    public void setLazyFeatures(boolean lazyFeatures) {
+        this.lazyFeatures = lazyFeatures;
+        delegate.setLazyFeatures(lazyFeatures);
+    }
+
+    public void setGeometryDistance(Double geometryDistance) {
+        this.geometryDistance = geometryDistance;
+        delegate.setGeometryDistance(geometryDistance);
+    }
+
     @Override
     public SimpleFeatureType getFeatureType() {
         return delegate.getFeatureType();
@@ -87,6 +306,13 @@ public class ElasticFeatureReaderScroll implements FeatureReader<SimpleFeatureTy
 
     @Override
     public void close() throws IOException {
+        if (prefetch > 0) {
+            synchronized (this) {
+                closed = true;
+                pages.clear();
+            }
+        }
+        getDataStore().getScrollRegistry().release(scroll);
         delegate.close();
     }
 
@@ -0,0 +1,96 @@
+/**
+ * This file is hereby placed into the Public Domain. This means anyone is
+ * free to do whatever they wish with this file.
+ */
+package mil.nga.giat.data.elasticsearch;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import org.geotools.data.FeatureReader;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Feature reader spooling the features read from the delegate. The spool
+ * is added to the cache once all features have been read, and discarded if
+ * the reader is closed early or the spool grows over the maximum size.
+ */
+public class ElasticFeatureReaderSpooling implements FeatureReader<SimpleFeatureType, SimpleFeature> {
+
+    private final static Logger LOGGER = Logging.getLogger(ElasticFeatureReaderSpooling.class);
+
+    private final FeatureReader<SimpleFeatureType, SimpleFeature> delegate;
+
+    private final ElasticSpoolCache spoolCache;
+
+    private final String queryKey;
+
+    private ElasticSpool.Writer writer;
+
+    public ElasticFeatureReaderSpooling(FeatureReader<SimpleFeatureType, SimpleFeature> delegate,
+            ElasticSpoolCache spoolCache, String queryKey) {
+        this.delegate = delegate;
+        this.spoolCache = spoolCache;
+        this.queryKey = queryKey;
+        try {
+            this.writer = new ElasticSpool.Writer(delegate.getFeatureType(), spoolCache.getMaxBytes());
+        } catch (IOException e) {
+            LOGGER.fine("Error creating spool: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public SimpleFeatureType getFeatureType() {
+        return delegate.getFeatureType();
+    }
+
+    @Override
+    public SimpleFeature next() throws IOException {
+        final SimpleFeature feature = delegate.next();
+        if (writer != null) {
+            boolean written;
+            try {
+                written = writer.write(feature);
+            } catch (IOException e) {
+                LOGGER.fine("Error spooling feature: " + e.getMessage());
+                written = false;
+            }
+            if (!written) {
+                LOGGER.fine("Results over the spool size or not encodable, not spooled");
+                discard();
+            }
+        }
+        return feature;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        final boolean hasNext = delegate.hasNext();
+        if (!hasNext && writer != null) {
+            try {
+                spoolCache.put(queryKey, writer.finish());
+            } catch (IOException e) {
+                LOGGER.fine("Error completing spool: " + e.getMessage());
+                writer.discard();
+            }
+            writer = null;
+        }
+        return hasNext;
+    }
+
+    @Override
+    public void close() throws IOException {
+        discard();
+        delegate.close();
+    }
+
+    private void discard() {
+        if (writer != null) {
+            writer.discard();
+            writer = null;
+        }
+    }
+
+}
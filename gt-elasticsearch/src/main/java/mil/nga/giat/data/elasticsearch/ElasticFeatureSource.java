@@ -4,35 +4,85 @@
  */
 package mil.nga.giat.data.elasticsearch;
 
+import static mil.nga.giat.data.elasticsearch.ElasticLayerConfiguration.ANALYZED;
+import static mil.nga.giat.data.elasticsearch.ElasticLayerConfiguration.FULL_NAME;
+import static mil.nga.giat.data.elasticsearch.ElasticLayerConfiguration.GEOMETRY_TYPE;
+import static mil.nga.giat.data.elasticsearch.ElasticLayerConfiguration.NESTED;
 import static org.opengis.filter.sort.SortOrder.ASCENDING;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.common.geo.GeoPoint;
+import org.elasticsearch.common.text.Text;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.AndFilterBuilder;
 import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.OrFilterBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.RangeFilterBuilder;
+import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AbstractAggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.geogrid.GeoHashGrid;
+import org.elasticsearch.search.aggregations.bucket.geogrid.GeoHashGridBuilder;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.geobounds.GeoBounds;
+import org.elasticsearch.search.aggregations.metrics.stats.Stats;
 import org.elasticsearch.search.sort.SortOrder;
+import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureReader;
 import org.geotools.data.FilteringFeatureReader;
 import org.geotools.data.Query;
+import org.geotools.data.ReTypeFeatureReader;
+import org.geotools.data.sort.SortedFeatureReader;
 import org.geotools.data.store.ContentEntry;
 import org.geotools.data.store.ContentFeatureSource;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.feature.visitor.AverageVisitor;
+import org.geotools.feature.visitor.CountVisitor;
+import org.geotools.feature.visitor.MaxVisitor;
+import org.geotools.feature.visitor.MinVisitor;
+import org.geotools.feature.visitor.SumVisitor;
+import org.geotools.feature.visitor.UniqueVisitor;
+import org.geotools.filter.visitor.ExtractBoundsFilterVisitor;
 import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.factory.Hints;
+import org.geotools.util.Converters;
 import org.geotools.util.logging.Logging;
+import org.opengis.feature.FeatureVisitor;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.expression.Expression;
+import org.opengis.filter.expression.PropertyName;
 import org.opengis.filter.sort.SortBy;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import com.vividsolutions.jts.geom.Envelope;
+
+import mil.nga.giat.data.elasticsearch.ElasticAttribute.ElasticGeometryType;
+
 /**
  * Provides access to a specific type within the Elasticsearch index described
  * by the associated data store.
@@ -45,8 +95,24 @@ public class ElasticFeatureSource extends ContentFeatureSource {
 
     private final static int DEFAULT_MAX_FEATURES = 10000;
 
+    private final static String BOUNDS_AGGREGATION = "bounds";
+
+    private final static String VISITOR_AGGREGATION = "visitor";
+
+    private final static String GRID_AGGREGATION = "grid";
+
+    /**
+     * Query hint enabling features that decode attributes on first access,
+     * overriding the data store lazy_features setting.
+     */
+    public static final Hints.Key LAZY_FEATURES = new Hints.Key(Boolean.class);
+
     private Boolean filterFullySupported;
 
+    private Filter residualFilter;
+
+    private SimpleFeatureType readFeatureType;
+
     public ElasticFeatureSource(ContentEntry entry, Query query) throws IOException {
         super(entry, query);
     }
@@ -69,18 +135,87 @@ public class ElasticFeatureSource extends ContentFeatureSource {
         final ReferencedEnvelope bounds;
         bounds = new ReferencedEnvelope(crs);
 
-        try (FeatureReader<SimpleFeatureType, SimpleFeature> featureReader = getReaderInternal(query)) {
-            while (featureReader.hasNext()) {
-                final SimpleFeature feature = featureReader.next();
-                bounds.include(feature.getBounds());
+        final ElasticSpool spool = getSpool(query);
+        if (spool != null && spool.coversBounds(getSchema())) {
+            return spool.getBounds();
+        }
+
+        final String geoPointField = getDefaultGeoPointField();
+        boolean aggregated = false;
+        if (geoPointField != null && !isLimitOrOffset(query) && !isGroup()) {
+            try {
+                aggregated = getAggregatedBounds(query, geoPointField, bounds);
+            } catch (InterruptedException | ExecutionException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                throw new IOException("Error executing bounds aggregation", e);
+            }
+        }
+
+        if (!aggregated) {
+            try (FeatureReader<SimpleFeatureType, SimpleFeature> featureReader = getReaderInternal(query)) {
+                while (featureReader.hasNext()) {
+                    final SimpleFeature feature = featureReader.next();
+                    bounds.include(feature.getBounds());
+                }
             }
         }
         return bounds;
     }
 
+    /**
+     * Computes bounds of the default geo_point field using a geo_bounds 
+     * aggregation. Returns false without updating the bounds if the filter
+     * is not fully supported, in which case bounds must be computed from 
+     * the (post-filtered) features.
+     */
+    private boolean getAggregatedBounds(Query query, String geoPointField, 
+            ReferencedEnvelope bounds) throws IOException, InterruptedException, ExecutionException {
+
+        final SearchRequestBuilder searchRequest = prepareSearchRequest(query, SearchType.COUNT);
+        if (!filterFullySupported) {
+            return false;
+        }
+        // plain min/max box, since wrapped bounds crossing the antimeridian cannot be represented
+        searchRequest.addAggregation(AggregationBuilders.geoBounds(BOUNDS_AGGREGATION).field(geoPointField)
+                .wrapLongitude(false));
+
+        final SearchResponse sr = searchRequest.execute().get();
+        final GeoBounds geoBounds = sr.getAggregations().get(BOUNDS_AGGREGATION);
+        final GeoPoint topLeft = geoBounds.topLeft();
+        final GeoPoint bottomRight = geoBounds.bottomRight();
+        if (topLeft != null && bottomRight != null) {
+            bounds.expandToInclude(topLeft.lon(), topLeft.lat());
+            bounds.expandToInclude(bottomRight.lon(), bottomRight.lat());
+        }
+        return true;
+    }
+
+    /**
+     * Full name of the default geometry field if it is a geo_point type 
+     * (required for geo_bounds aggregation), otherwise null.
+     */
+    private String getDefaultGeoPointField() throws IOException {
+        final GeometryDescriptor descriptor = getSchema().getGeometryDescriptor();
+        final String fieldName;
+        if (descriptor != null && descriptor.getUserData().get(GEOMETRY_TYPE) == ElasticGeometryType.GEO_POINT) {
+            fieldName = (String) descriptor.getUserData().get(FULL_NAME);
+        } else {
+            fieldName = null;
+        }
+        return fieldName;
+    }
+
     @Override
     protected int getCountInternal(Query query) throws IOException {
         LOGGER.fine("getCountInternal");
+        if (isGeohashGrid(query) || isGroup()) {
+            // number of grid cells or groups is only known after aggregation
+            return -1;
+        }
+        final ElasticSpool spool = getSpool(query);
+        if (spool != null) {
+            return spool.getCount();
+        }
         int hits = 0;
         try {
             final SearchRequestBuilder searchRequest = prepareSearchRequest(query, SearchType.COUNT);
@@ -94,8 +229,9 @@ public class ElasticFeatureSource extends ContentFeatureSource {
             } else {
                 final SearchResponse sr = searchRequest.execute().get();
                 final int totalHits = (int) sr.getHits().getTotalHits();
-                final int size = getSize(query);
                 final int from = getStartIndex(query);
+                // same limit as the reader: single pages are capped, scrolls are not
+                final int size = query.getStartIndex() != null || isSample(query) ? getSize(query) : getLimit(query);
                 hits = Math.max(0, Math.min(totalHits - from, size));
             }
         } catch (InterruptedException | ExecutionException e) {
@@ -109,38 +245,560 @@ public class ElasticFeatureSource extends ContentFeatureSource {
     @Override
     protected FeatureReader<SimpleFeatureType, SimpleFeature> getReaderInternal(Query query) throws IOException {
         LOGGER.fine("getReaderInternal");
+        final SimpleFeatureType targetType = getTargetFeatureType(query);
+        final ElasticSpool spool = getSpool(query);
+        if (spool != null && spool.covers(targetType)) {
+            LOGGER.fine("Reading " + spool.getCount() + " spooled features");
+            FeatureReader<SimpleFeatureType, SimpleFeature> reader = spool.getReader();
+            if (!spool.getFeatureType().getAttributeDescriptors().equals(targetType.getAttributeDescriptors())) {
+                reader = new ReTypeFeatureReader(reader, targetType, false);
+            }
+            return reader;
+        }
+
         FeatureReader<SimpleFeatureType, SimpleFeature> reader = null;
         try {
-            SearchType searchType = (useSortOrPagination(query) 
-                    || !getDataStore().getScrollEnabled()) ? SearchType.DFS_QUERY_THEN_FETCH : SearchType.SCAN;
-            final SearchRequestBuilder searchRequest = prepareSearchRequest(query, searchType);
-            SearchResponse sr = searchRequest.execute().get();
-            if (searchType!=SearchType.SCAN) {
-                reader = new ElasticFeatureReader(getState(), sr);
-            } else {
-                reader = new ElasticFeatureReaderScroll(getState(), sr.getScrollId(), getSize(query));
+            if (isGeohashGrid(query)) {
+                reader = getGeohashGridReader(query);
             }
-            if (!filterFullySupported) {
-                reader = new FilteringFeatureReader<SimpleFeatureType, SimpleFeature>(reader, query.getFilter());
+            if (reader == null && isGroup()) {
+                reader = getGroupReader(query);
+            }
+            if (reader == null) {
+                reader = getDocumentReader(query);
             }
         } catch (InterruptedException | ExecutionException e) {
             LOGGER.log(Level.SEVERE, e.getMessage(), e);
             throw new IOException("Error executing query search", e);
         }
+
+        // reduce to the requested properties if more were read for post-filtering
+        if (!(reader instanceof ElasticFeatureReaderGeohashGrid) 
+                && !reader.getFeatureType().getAttributeDescriptors().equals(targetType.getAttributeDescriptors())) {
+            reader = new ReTypeFeatureReader(reader, targetType, false);
+        }
+
+        // spool for the further passes of the request
+        if (isSpool(query) && spool == null && !isGeohashGrid(query) && !isGroup()) {
+            reader = new ElasticFeatureReaderSpooling(reader, getDataStore().getSpoolCache(), getSpoolKey(query));
+        }
         return reader;
     }
 
+    /**
+     * Feature reader over the matching documents, paged or scrolled.
+     */
+    private FeatureReader<SimpleFeatureType, SimpleFeature> getDocumentReader(Query query) 
+            throws IOException, InterruptedException, ExecutionException {
+        FeatureReader<SimpleFeatureType, SimpleFeature> reader;
+        if (query.getStartIndex() != null) {
+            final SearchRequestBuilder searchRequest = prepareSearchRequest(query, SearchType.DFS_QUERY_THEN_FETCH);
+            final SearchResponse sr = searchRequest.execute().get();
+            if (isKeysetPaging(query)) {
+                putKeyset(query, sr);
+            }
+            reader = getPageReader(query, sr);
+        } else if (isSample(query)) {
+            // random order only if the hits exceed the budget, keeping scores otherwise
+            SearchResponse sr = prepareSearchRequest(query, SearchType.DFS_QUERY_THEN_FETCH).execute().get();
+            final long totalHits = sr.getHits().getTotalHits();
+            if (totalHits > getDataStore().getSampleBudget()) {
+                sr = prepareSearchRequest(query, SearchType.DFS_QUERY_THEN_FETCH, true).execute().get();
+                final int numHits = sr.getHits().getHits().length;
+                LOGGER.fine("Returning random sample of " + numHits + " out of " + totalHits + " hits");
+                final ElasticFeatureReader sampleReader = getPageReader(query, sr);
+                sampleReader.setSampleRatio(numHits / (double) totalHits);
+                reader = sampleReader;
+            } else {
+                reader = getPageReader(query, sr);
+            }
+        } else {
+            // single page if all hits fit in the first page, scroll otherwise
+            final SearchRequestBuilder searchRequest = prepareSearchRequest(query, SearchType.DFS_QUERY_THEN_FETCH);
+            searchRequest.setSize(getFirstPageSize(query));
+            final SearchResponse sr = searchRequest.execute().get();
+            final long totalHits = sr.getHits().getTotalHits();
+            final int numHits = sr.getHits().getHits().length;
+            if (numHits >= totalHits || numHits >= getLimit(query)) {
+                reader = getPageReader(query, sr);
+            } else if (!getDataStore().getScrollEnabled() && totalHits <= getSize(query)) {
+                LOGGER.fine("Reading " + totalHits + " hits in a single page");
+                searchRequest.setSize(getSize(query));
+                reader = getPageReader(query, searchRequest.execute().get());
+            } else if (isSort(query)) {
+                LOGGER.fine("Scrolling " + totalHits + " sorted hits not fitting in a single page");
+                reader = getSortedScrollReader(query);
+            } else {
+                LOGGER.fine("Scanning " + totalHits + " hits not fitting in a single page");
+                reader = getScanReader(query);
+            }
+        }
+        if (!filterFullySupported) {
+            reader = new FilteringFeatureReader<SimpleFeatureType, SimpleFeature>(reader, residualFilter);
+        }
+        return reader;
+    }
+
+    private ElasticFeatureReader getPageReader(Query query, SearchResponse sr) {
+        final ElasticFeatureReader elasticReader = new ElasticFeatureReader(getState(), readFeatureType, sr);
+        elasticReader.setLazyFeatures(isLazyFeatures(query));
+        elasticReader.setGeometryDistance(getGeometryDistance(query));
+        return elasticReader;
+    }
+
+    /**
+     * Reader over a query_then_fetch scroll keeping the query sort, without
+     * the from/size window of single pages.
+     */
+    private FeatureReader<SimpleFeatureType, SimpleFeature> getSortedScrollReader(Query query) 
+            throws IOException, InterruptedException, ExecutionException {
+        final ElasticDataStore dataStore = getDataStore();
+        final SearchRequestBuilder searchRequest = prepareSearchRequest(query, SearchType.QUERY_THEN_FETCH);
+        searchRequest.setFrom(0);
+        final Integer scrollSize = dataStore.getScrollSizer().getSize(entry.getTypeName());
+        if (scrollSize != null) {
+            searchRequest.setSize(scrollSize);
+        }
+        if (dataStore.getScrollTime() != null) {
+            searchRequest.setScroll(TimeValue.timeValueSeconds(dataStore.getScrollTime()));
+        }
+        final SearchResponse sr = searchRequest.execute().get();
+        final ElasticFeatureReaderScroll scrollReader;
+        scrollReader = new ElasticFeatureReaderScroll(getState(), readFeatureType, sr, getLimit(query));
+        scrollReader.setLazyFeatures(isLazyFeatures(query));
+        scrollReader.setGeometryDistance(getGeometryDistance(query));
+        return scrollReader;
+    }
+
+    private FeatureReader<SimpleFeatureType, SimpleFeature> getScanReader(Query query) 
+            throws IOException, InterruptedException, ExecutionException {
+        final FeatureReader<SimpleFeatureType, SimpleFeature> reader;
+        final int numShards = getParallelScanShards();
+        if (numShards > 1) {
+            // one scan per shard, scrolled concurrently
+            final List<SearchRequestBuilder> sliceRequests = new ArrayList<>(numShards);
+            for (int shard=0; shard<numShards; shard++) {
+                sliceRequests.add(prepareSearchRequest(query, SearchType.SCAN).setPreference("_shards:" + shard));
+            }
+            final ElasticFeatureReaderParallelScan scanReader;
+            scanReader = new ElasticFeatureReaderParallelScan(getState(), readFeatureType, sliceRequests,
+                    getDataStore().getParallelScan(), getLimit(query));
+            scanReader.setLazyFeatures(isLazyFeatures(query));
+            scanReader.setGeometryDistance(getGeometryDistance(query));
+            reader = scanReader;
+        } else {
+            final SearchRequestBuilder searchRequest = prepareSearchRequest(query, SearchType.SCAN);
+            final SearchResponse sr = searchRequest.execute().get();
+            final ElasticFeatureReaderScroll scrollReader;
+            scrollReader = new ElasticFeatureReaderScroll(getState(), readFeatureType, sr.getScrollId(), 
+                    getLimit(query));
+            scrollReader.setLazyFeatures(isLazyFeatures(query));
+            scrollReader.setGeometryDistance(getGeometryDistance(query));
+            reader = scrollReader;
+        }
+        return reader;
+    }
+
+    /**
+     * Feature reader over the top document of each group defined in the layer
+     * configuration, post-filtered and sorted in memory. Offset and limit are
+     * applied by the caller.
+     */
+    private FeatureReader<SimpleFeatureType, SimpleFeature> getGroupReader(Query query) throws IOException {
+        final ElasticLayerConfiguration layerConfig = getLayerConfiguration();
+        final FilterToElastic filterToElastic = encodeFilter(query);
+        final QueryBuilder elasticQuery = QueryBuilders.filteredQuery(filterToElastic.getQueryBuilder(), 
+                filterToElastic.getFilterBuilder());
+        final Set<String> fieldNames = getFieldNames(readFeatureType);
+        final List<String> includes = new ArrayList<>();
+        final List<String> fieldDataFields = new ArrayList<>();
+        for (final ElasticAttribute attribute : getDataStore().getElasticAttributes(entry.getName())) {
+            if (!attribute.isUse() || !fieldNames.contains(attribute.getName())) {
+                continue;
+            }
+            if (attribute.isReadFromDocValues()) {
+                fieldDataFields.add(attribute.getName());
+            } else {
+                includes.add(attribute.getName());
+            }
+        }
+
+        final ElasticFeatureReaderGroup groupReader;
+        groupReader = new ElasticFeatureReaderGroup(getState(), readFeatureType, elasticQuery, layerConfig.getGroupBy(), 
+                layerConfig.getGroupSort(), includes.toArray(new String[includes.size()]), 
+                fieldDataFields.toArray(new String[fieldDataFields.size()]), Integer.MAX_VALUE);
+        groupReader.setLazyFeatures(isLazyFeatures(query));
+        groupReader.setGeometryDistance(getGeometryDistance(query));
+        FeatureReader<SimpleFeatureType, SimpleFeature> reader = groupReader;
+        if (!filterFullySupported) {
+            reader = new FilteringFeatureReader<SimpleFeatureType, SimpleFeature>(reader, residualFilter);
+        }
+        final SortBy[] sortBy = getPropertySortBy(query);
+        if (sortBy.length > 0) {
+            // sorted before retyping to the requested properties
+            final Query sortQuery = new Query(query);
+            sortQuery.setSortBy(sortBy);
+            reader = new SortedFeatureReader(DataUtilities.simple(reader), sortQuery);
+        }
+        return reader;
+    }
+
+    /**
+     * Sort of the query on properties, without the natural order.
+     */
+    private SortBy[] getPropertySortBy(Query query) {
+        final List<SortBy> sortBy = new ArrayList<>();
+        if (query.getSortBy() != null) {
+            for (final SortBy sort : query.getSortBy()) {
+                if (sort.getPropertyName() != null) {
+                    sortBy.add(sort);
+                }
+            }
+        }
+        return sortBy.toArray(new SortBy[sortBy.size()]);
+    }
+
+    private ElasticLayerConfiguration getLayerConfiguration() {
+        return getDataStore().getLayerConfigurations().get(entry.getTypeName());
+    }
+
+    /**
+     * Whether the layer is configured to return only the top document of 
+     * each group.
+     */
+    private boolean isGroup() {
+        final ElasticLayerConfiguration layerConfig = getLayerConfiguration();
+        return layerConfig != null && layerConfig.getGroupBy() != null && layerConfig.getGroupSort() != null;
+    }
+
+    /**
+     * Feature reader over the cells of a geohash_grid aggregation on the 
+     * default geo_point field. Returns null, resulting in default document 
+     * access, if the default geometry is not a geo_point or the filter is not
+     * fully supported.
+     */
+    private FeatureReader<SimpleFeatureType, SimpleFeature> getGeohashGridReader(Query query) 
+            throws IOException, InterruptedException, ExecutionException {
+
+        final String geoPointField = getDefaultGeoPointField();
+        if (geoPointField == null) {
+            LOGGER.fine("Geohash grid aggregation requires a geo_point default geometry");
+            return null;
+        }
+        final SearchRequestBuilder searchRequest = prepareSearchRequest(query, SearchType.COUNT);
+        if (!filterFullySupported) {
+            LOGGER.fine("Geohash grid aggregation requires a fully supported filter");
+            return null;
+        }
+
+        final int precision = getGeohashGridPrecision(query);
+        // high precisions over large extents would return too many cells
+        int size = ElasticFeatureReaderGeohashGrid.MAX_CELLS;
+        if (isLimitOrOffset(query)) {
+            size = Math.min(size, getSize(query));
+        }
+        final GeoHashGridBuilder grid = AggregationBuilders.geohashGrid(GRID_AGGREGATION)
+                .field(geoPointField).precision(precision).size(size);
+
+        final List<String> metricAttributes = new ArrayList<>();
+        final String metric = getViewParameter(query, ElasticFeatureReaderGeohashGrid.METRIC_PARAMETER);
+        if (metric != null) {
+            final String[] propertyNames = query.getPropertyNames();
+            for (final AttributeDescriptor attribute : getSchema().getAttributeDescriptors()) {
+                final String name = attribute.getLocalName();
+                if (propertyNames != null && !Arrays.asList(propertyNames).contains(name)) {
+                    continue;
+                }
+                final AttributeDescriptor descriptor = getAggregationDescriptor(getDataStore().getFilterFactory().property(name));
+                if (descriptor == null || !Number.class.isAssignableFrom(descriptor.getType().getBinding())) {
+                    continue;
+                }
+                final String fieldName = (String) descriptor.getUserData().get(FULL_NAME);
+                final String aggregationName = ElasticFeatureReaderGeohashGrid.METRIC_AGGREGATION_PREFIX 
+                        + metricAttributes.size();
+                grid.subAggregation(createMetricAggregation(metric, aggregationName, fieldName));
+                metricAttributes.add(name);
+            }
+        }
+        searchRequest.addAggregation(grid);
+
+        final SearchResponse sr = searchRequest.execute().get();
+        final GeoHashGrid geoHashGrid = sr.getAggregations().get(GRID_AGGREGATION);
+        return new ElasticFeatureReaderGeohashGrid(getState(), getGeohashGridTargetType(query), geoHashGrid, 
+                metricAttributes);
+    }
+
+    /**
+     * Requested feature type, with the default geometry holding the cell
+     * even if not requested.
+     */
+    private SimpleFeatureType getGeohashGridTargetType(Query query) throws IOException {
+        final SimpleFeatureType targetType = getTargetFeatureType(query);
+        final GeometryDescriptor geometry = getSchema().getGeometryDescriptor();
+        if (geometry == null || targetType.getDescriptor(geometry.getLocalName()) != null) {
+            return targetType;
+        }
+        final List<String> names = new ArrayList<>();
+        names.add(geometry.getLocalName());
+        for (final AttributeDescriptor descriptor : targetType.getAttributeDescriptors()) {
+            names.add(descriptor.getLocalName());
+        }
+        return SimpleFeatureTypeBuilder.retype(getSchema(), names.toArray(new String[names.size()]));
+    }
+
+    private AbstractAggregationBuilder createMetricAggregation(String metric, String name, String fieldName) {
+        final AbstractAggregationBuilder aggregation;
+        switch (metric.toLowerCase()) {
+        case "avg":
+            aggregation = AggregationBuilders.avg(name).field(fieldName);
+            break;
+        case "min":
+            aggregation = AggregationBuilders.min(name).field(fieldName);
+            break;
+        case "max":
+            aggregation = AggregationBuilders.max(name).field(fieldName);
+            break;
+        case "sum":
+            aggregation = AggregationBuilders.sum(name).field(fieldName);
+            break;
+        default:
+            throw new IllegalArgumentException("Unsupported grid metric: " + metric);
+        }
+        return aggregation;
+    }
+
+    /**
+     * Geohash precision from view parameters. Precision is either given 
+     * explicitly or derived from the query bounding box and grid size.
+     */
+    private int getGeohashGridPrecision(Query query) {
+        final String value = getViewParameter(query, ElasticFeatureReaderGeohashGrid.PRECISION_PARAMETER);
+        final int precision;
+        if (value.equalsIgnoreCase("auto")) {
+            final String sizeValue = getViewParameter(query, ElasticFeatureReaderGeohashGrid.SIZE_PARAMETER);
+            final int size;
+            if (sizeValue != null) {
+                size = Math.max(1, Math.min(ElasticFeatureReaderGeohashGrid.MAX_SIZE, 
+                        parseGridParameter(ElasticFeatureReaderGeohashGrid.SIZE_PARAMETER, sizeValue)));
+            } else {
+                size = ElasticFeatureReaderGeohashGrid.DEFAULT_SIZE;
+            }
+            final Envelope envelope = (Envelope) query.getFilter().accept(ExtractBoundsFilterVisitor.BOUNDS_VISITOR, null);
+            precision = ElasticFeatureReaderGeohashGrid.getPrecision(envelope, size);
+        } else {
+            precision = Math.max(1, Math.min(ElasticFeatureReaderGeohashGrid.MAX_PRECISION, 
+                    parseGridParameter(ElasticFeatureReaderGeohashGrid.PRECISION_PARAMETER, value)));
+        }
+        return precision;
+    }
+
+    private static int parseGridParameter(String key, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + key + " parameter: " + value, e);
+        }
+    }
+
+    private boolean isGeohashGrid(Query query) {
+        return getViewParameter(query, ElasticFeatureReaderGeohashGrid.PRECISION_PARAMETER) != null;
+    }
+
+    private String getViewParameter(Query query, String key) {
+        final Hints hints = query.getHints();
+        if (hints == null) {
+            return null;
+        }
+        final Map<String, String> parameters = (Map<String, String>) hints.get(Hints.VIRTUAL_TABLE_PARAMETERS);
+        if (parameters == null) {
+            return null;
+        }
+        for (final Map.Entry<String, String> entry : parameters.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(key)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Computes count, unique, min, max, sum and average visitor results using
+     * Elasticsearch aggregations. Returns false, resulting in default visitor
+     * handling through the feature reader, if the visitor or attribute type is 
+     * not supported, if the filter is not fully supported or if features are
+     * groups or grid cells rather than documents.
+     */
+    @Override
+    protected boolean handleVisitor(Query query, FeatureVisitor visitor) throws IOException {
+        LOGGER.fine("handleVisitor");
+        if (isGroup() || isGeohashGrid(query)) {
+            return false;
+        }
+        if (visitor instanceof CountVisitor) {
+            ((CountVisitor) visitor).setValue(getCountInternal(query));
+            return true;
+        }
+
+        final Expression expression;
+        if (visitor instanceof UniqueVisitor) {
+            expression = ((UniqueVisitor) visitor).getExpression();
+        } else if (visitor instanceof MinVisitor) {
+            expression = ((MinVisitor) visitor).getExpression();
+        } else if (visitor instanceof MaxVisitor) {
+            expression = ((MaxVisitor) visitor).getExpression();
+        } else if (visitor instanceof SumVisitor) {
+            expression = ((SumVisitor) visitor).getExpression();
+        } else if (visitor instanceof AverageVisitor) {
+            expression = ((AverageVisitor) visitor).getExpression();
+        } else {
+            return false;
+        }
+
+        final AttributeDescriptor descriptor = getAggregationDescriptor(expression);
+        if (descriptor == null || isLimitOrOffset(query)) {
+            return false;
+        }
+        final String fieldName = (String) descriptor.getUserData().get(FULL_NAME);
+        final Class<?> binding = descriptor.getType().getBinding();
+        final boolean isDate = Date.class.isAssignableFrom(binding);
+        final boolean isNumber = Number.class.isAssignableFrom(binding);
+
+        final SearchRequestBuilder searchRequest = prepareSearchRequest(query, SearchType.COUNT);
+        if (!filterFullySupported) {
+            return false;
+        }
+
+        try {
+            if (visitor instanceof UniqueVisitor) {
+                final Boolean analyzed = (Boolean) descriptor.getUserData().get(ANALYZED);
+                if (!isDate && !isNumber && !String.class.isAssignableFrom(binding) 
+                        || (analyzed != null && analyzed)) {
+                    return false;
+                }
+                searchRequest.addAggregation(AggregationBuilders.terms(VISITOR_AGGREGATION)
+                        .field(fieldName).size(0));
+                final SearchResponse sr = searchRequest.execute().get();
+                final Terms terms = sr.getAggregations().get(VISITOR_AGGREGATION);
+                final Set<Object> values = new LinkedHashSet<>();
+                for (final Terms.Bucket bucket : terms.getBuckets()) {
+                    if (isDate) {
+                        values.add(new Date(bucket.getKeyAsNumber().longValue()));
+                    } else if (isNumber) {
+                        values.add(Converters.convert(bucket.getKeyAsNumber(), binding));
+                    } else {
+                        values.add(bucket.getKey());
+                    }
+                }
+                ((UniqueVisitor) visitor).setValue(values);
+            } else {
+                final boolean isMinOrMax = visitor instanceof MinVisitor || visitor instanceof MaxVisitor;
+                if (!isNumber && !(isDate && isMinOrMax)) {
+                    return false;
+                }
+                searchRequest.addAggregation(AggregationBuilders.stats(VISITOR_AGGREGATION).field(fieldName));
+                final SearchResponse sr = searchRequest.execute().get();
+                final Stats stats = sr.getAggregations().get(VISITOR_AGGREGATION);
+                if (stats.getCount() > 0) {
+                    if (visitor instanceof MinVisitor) {
+                        ((MinVisitor) visitor).setValue(toValue(stats.getMin(), binding));
+                    } else if (visitor instanceof MaxVisitor) {
+                        ((MaxVisitor) visitor).setValue(toValue(stats.getMax(), binding));
+                    } else if (visitor instanceof SumVisitor) {
+                        ((SumVisitor) visitor).setValue(toValue(stats.getSum(), binding));
+                    } else {
+                        ((AverageVisitor) visitor).setValue(stats.getAvg());
+                    }
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            LOGGER.log(Level.SEVERE, e.getMessage(), e);
+            throw new IOException("Error executing aggregation search", e);
+        }
+        return true;
+    }
+
+    /**
+     * Executes aggregations over the documents matching the query. Returns 
+     * null if the query has a limit or offset, the layer is grouped, grid
+     * cells are requested or the filter is not fully supported.
+     */
+    Aggregations aggregate(Query query, AbstractAggregationBuilder... aggregations) throws IOException {
+        if (isLimitOrOffset(query) || isGroup() || isGeohashGrid(query)) {
+            return null;
+        }
+        final SearchRequestBuilder searchRequest = prepareSearchRequest(query, SearchType.COUNT);
+        if (!filterFullySupported) {
+            return null;
+        }
+        for (final AbstractAggregationBuilder aggregation : aggregations) {
+            searchRequest.addAggregation(aggregation);
+        }
+        try {
+            return searchRequest.execute().get().getAggregations();
+        } catch (InterruptedException | ExecutionException e) {
+            LOGGER.log(Level.SEVERE, e.getMessage(), e);
+            throw new IOException("Error executing aggregation search", e);
+        }
+    }
+
+    /**
+     * Attribute descriptor referenced by an aggregation expression, or null if
+     * the expression is not a property name or references a geometry, nested 
+     * or metadata attribute.
+     */
+    AttributeDescriptor getAggregationDescriptor(Expression expression) throws IOException {
+        if (!(expression instanceof PropertyName)) {
+            return null;
+        }
+        final AttributeDescriptor descriptor = (AttributeDescriptor) expression.evaluate(getSchema());
+        if (descriptor == null || descriptor instanceof GeometryDescriptor 
+                || descriptor.getUserData().get(FULL_NAME) == null
+                || descriptor.getLocalName().startsWith("_")) {
+            return null;
+        }
+        final Boolean nested = (Boolean) descriptor.getUserData().get(NESTED);
+        if (nested != null && nested) {
+            return null;
+        }
+        return descriptor;
+    }
+
+    private Object toValue(double value, Class<?> binding) {
+        final Object result;
+        if (Date.class.isAssignableFrom(binding)) {
+            result = new Date(Math.round(value));
+        } else if (Float.class.isAssignableFrom(binding) || Double.class.isAssignableFrom(binding)) {
+            result = value;
+        } else {
+            result = Converters.convert(Math.round(value), binding);
+        }
+        return result;
+    }
+
     private SearchRequestBuilder prepareSearchRequest(Query query, SearchType searchType) throws IOException {
+        return prepareSearchRequest(query, searchType, false);
+    }
+
+    /**
+     * @param sample Whether hits are returned in random order, so that the 
+     * page is a representative sample of the hits
+     */
+    private SearchRequestBuilder prepareSearchRequest(Query query, SearchType searchType, boolean sample) 
+            throws IOException {
         SortOrder naturalSortOrder = SortOrder.ASC;
         final SearchRequestBuilder searchRequest;
         final ElasticDataStore dataStore = getDataStore();
         final String docType = dataStore.getDocType(entry.getName());
+        final boolean keyset = searchType == SearchType.DFS_QUERY_THEN_FETCH && isKeysetPaging(query);
+        FilterBuilder keysetFilter = null;
 
         LOGGER.fine("Preparing " + docType + " (" + entry.getName() + ") " + searchType + " query");
         if (searchType!=SearchType.SCAN) {
             searchRequest = dataStore.getClient().prepareSearch(dataStore.getSearchIndices()).setTypes(docType)
                     .setSearchType(searchType);
 
+            final List<String> sortFields = new ArrayList<>();
+            final List<SortOrder> sortOrders = new ArrayList<>();
             if (query.getSortBy()!=null){
                 for (final SortBy sort : query.getSortBy()) {
                     final SortOrder sortOrder = (sort.getSortOrder() == ASCENDING) ? SortOrder.ASC : SortOrder.DESC;
@@ -148,6 +806,8 @@ public class ElasticFeatureSource extends ContentFeatureSource {
                     if (sort.getPropertyName() != null) {
                         final String name = sort.getPropertyName().getPropertyName();
                         searchRequest.addSort(name, sortOrder);
+                        sortFields.add(name);
+                        sortOrders.add(sortOrder);
                     } else {
                         naturalSortOrder = sortOrder;
                     }
@@ -156,54 +816,157 @@ public class ElasticFeatureSource extends ContentFeatureSource {
 
             // pagination
             searchRequest.setSize(getSize(query));
-            searchRequest.setFrom(getStartIndex(query));			
+            int from = getStartIndex(query);
+            if (keyset) {
+                // unique sort, seeking after the closest known page boundary
+                searchRequest.addSort("_uid", naturalSortOrder);
+                sortFields.add("_uid");
+                sortOrders.add(naturalSortOrder);
+                final Map.Entry<Integer, Object[]> boundary;
+                boundary = dataStore.getKeysetCache().get(getKeysetKey(query), from);
+                if (boundary != null) {
+                    keysetFilter = getKeysetFilter(sortFields, sortOrders, boundary.getValue());
+                    from -= boundary.getKey();
+                }
+            }
+            searchRequest.setFrom(from);
         } else {
             searchRequest = dataStore.getClient().prepareSearch(dataStore.getSearchIndices()).setTypes(docType)
                     .setSearchType(SearchType.SCAN);
-            if (dataStore.getScrollSize() != null) {
-                searchRequest.setSize(dataStore.getScrollSize().intValue());
+            final Integer scrollSize = dataStore.getScrollSizer().getSize(entry.getTypeName());
+            if (scrollSize != null) {
+                searchRequest.setSize(scrollSize);
             }
             if (dataStore.getScrollTime() != null) {
                 searchRequest.setScroll(TimeValue.timeValueSeconds(dataStore.getScrollTime()));
             }
         }
 
+        // add query and post filter
+        final FilterToElastic filterToElastic = encodeFilter(query);
+
         // add fields
         setIncludes(searchRequest);
+        final QueryBuilder elasticQuery = filterToElastic.getQueryBuilder();
+        final FilterBuilder postFilter = filterToElastic.getFilterBuilder();
+        if (searchType == SearchType.COUNT) {
+            // aggregations are not affected by post filters
+            searchRequest.setQuery(QueryBuilders.filteredQuery(elasticQuery, postFilter));
+        } else if (sample) {
+            // random order, stable for the layer, so truncated results are a representative sample
+            final int seed = entry.getTypeName().hashCode();
+            searchRequest.setQuery(QueryBuilders.functionScoreQuery(elasticQuery, 
+                    ScoreFunctionBuilders.randomFunction(seed)).boostMode("replace"))
+                    .setPostFilter(postFilter);
+        } else if (keysetFilter != null) {
+            searchRequest.setQuery(QueryBuilders.filteredQuery(elasticQuery, keysetFilter))
+                    .setPostFilter(postFilter);
+        } else {
+            searchRequest.setQuery(elasticQuery).setPostFilter(postFilter);
+        }
 
-        // add query and post filter
+        if (isSort(query) && !keyset && elasticQuery.toString().equals(QueryBuilders.matchAllQuery().toString())) {
+            searchRequest.addSort("_uid", naturalSortOrder);
+        }
+
+        LOGGER.fine(searchRequest.toString());
+
+        return searchRequest;
+    }
+
+    private FilterToElastic encodeFilter(Query query) throws IOException {
         final FilterToElastic filterToElastic = new FilterToElastic();
         filterToElastic.setFeatureType(buildFeatureType());
         filterToElastic.encode(query);
         filterFullySupported = filterToElastic.getFullySupported();
+        residualFilter = filterToElastic.getResidualFilter();
         if (!filterFullySupported) {
             LOGGER.fine("Filter is not fully supported by nativeElasticsearch."
-                    + " Additional post-query filtering will be performed.");
+                    + " Additional post-query filtering will be performed: " + residualFilter);
         }
-        final QueryBuilder elasticQuery = filterToElastic.getQueryBuilder();
-        final FilterBuilder postFilter = filterToElastic.getFilterBuilder();
-        searchRequest.setQuery(elasticQuery).setPostFilter(postFilter);
+        readFeatureType = getReadFeatureType(query);
+        return filterToElastic;
+    }
 
-        if (isSort(query) && elasticQuery.toString().equals(QueryBuilders.matchAllQuery().toString())) {
-            searchRequest.addSort("_uid", naturalSortOrder);
+    /**
+     * Feature type with the requested properties, in the requested order.
+     */
+    private SimpleFeatureType getTargetFeatureType(Query query) throws IOException {
+        final SimpleFeatureType schema = getSchema();
+        final SimpleFeatureType featureType;
+        if (query.retrieveAllProperties()) {
+            featureType = schema;
+        } else {
+            featureType = SimpleFeatureTypeBuilder.retype(schema, query.getPropertyNames());
         }
+        return featureType;
+    }
 
-        LOGGER.fine(searchRequest.toString());
+    /**
+     * Feature type read from the index, with the requested properties and 
+     * those needed to evaluate the residual filter. Grouped layers are 
+     * sorted in memory and also read the sort properties, other layers are
+     * sorted by Elasticsearch.
+     */
+    private SimpleFeatureType getReadFeatureType(Query query) throws IOException {
+        final SimpleFeatureType targetType = getTargetFeatureType(query);
+        final SortBy[] sortBy = isGroup() ? getPropertySortBy(query) : new SortBy[0];
+        if (query.retrieveAllProperties() || (filterFullySupported && sortBy.length == 0)) {
+            return targetType;
+        }
+        final SimpleFeatureType schema = getSchema();
+        final Set<String> names = new LinkedHashSet<>(Arrays.asList(query.getPropertyNames()));
+        final int numRequested = names.size();
+        if (!filterFullySupported) {
+            names.addAll(Arrays.asList(DataUtilities.attributeNames(residualFilter, schema)));
+        }
+        for (final SortBy sort : sortBy) {
+            names.add(sort.getPropertyName().getPropertyName());
+        }
+        if (names.size() == numRequested) {
+            return targetType;
+        }
+        final List<String> orderedNames = new ArrayList<>();
+        for (final AttributeDescriptor descriptor : schema.getAttributeDescriptors()) {
+            if (names.contains(descriptor.getLocalName())) {
+                orderedNames.add(descriptor.getLocalName());
+            }
+        }
+        return SimpleFeatureTypeBuilder.retype(schema, orderedNames.toArray(new String[orderedNames.size()]));
+    }
 
-        return searchRequest;
+    /**
+     * Full field names of the feature type attributes.
+     */
+    private Set<String> getFieldNames(SimpleFeatureType featureType) {
+        final Set<String> fieldNames = new HashSet<>();
+        for (final AttributeDescriptor descriptor : featureType.getAttributeDescriptors()) {
+            fieldNames.add((String) descriptor.getUserData().get(FULL_NAME));
+        }
+        return fieldNames;
     }
 
     private void setIncludes(final SearchRequestBuilder searchRequest) throws IOException {
         final ElasticDataStore dataStore = getDataStore();
         final List<ElasticAttribute> attributes = dataStore.getElasticAttributes(entry.getName());
+        final Set<String> fieldNames = getFieldNames(readFeatureType);
         List<String> sourceIncludes = new ArrayList<>();
         for (final ElasticAttribute attribute : attributes) {
-            if (attribute.isUse() && attribute.isStored()) {
+            if (!attribute.isUse() || !fieldNames.contains(attribute.getName())) {
+                continue;
+            }
+            if (attribute.isReadFromDocValues()) {
+                searchRequest.addFieldDataField(attribute.getName());
+            } else if (attribute.isStored()) {
                 searchRequest.addField(attribute.getName());
-            } else if (attribute.isUse()) {
+            } else {
                 sourceIncludes.add(attribute.getName());
             }
         }
+        if (sourceIncludes.isEmpty()) {
+            // all values are read from stored fields, field data or hit metadata
+            searchRequest.setFetchSource(false);
+        }
         if (sourceIncludes.size() == 1) {
             searchRequest.setFetchSource(sourceIncludes.get(0), null);
         } else if (!sourceIncludes.isEmpty()) {
@@ -217,21 +980,254 @@ public class ElasticFeatureSource extends ContentFeatureSource {
         return query.getSortBy() != null && query.getSortBy().length > 0;
     }
 
-    private boolean useSortOrPagination(Query query) {
-        return (query.getSortBy() != null && query.getSortBy().length > 0) ||
-                query.getStartIndex()!=null;
-    }	
+    private boolean isLimitOrOffset(Query query) {
+        return query.getMaxFeatures() < Integer.MAX_VALUE || query.getStartIndex() != null;
+    }
+
+    /**
+     * Whether results are limited to the configured sample budget, those
+     * exceeding it being randomly sampled. Only applies to unsorted queries 
+     * without offset that are not scrolled.
+     */
+    private boolean isSample(Query query) {
+        final ElasticDataStore dataStore = getDataStore();
+        final Integer sampleBudget = dataStore.getSampleBudget();
+        return sampleBudget != null && sampleBudget > 0 && !isSort(query) && query.getStartIndex() == null 
+                && !dataStore.getScrollEnabled();
+    }
+
+    /**
+     * Whether features decode attributes on first access, from the query 
+     * hint if present and otherwise the data store setting.
+     */
+    private boolean isLazyFeatures(Query query) {
+        final Object hint = query.getHints() != null ? query.getHints().get(LAZY_FEATURES) : null;
+        final boolean lazyFeatures;
+        if (hint != null) {
+            lazyFeatures = Boolean.TRUE.equals(hint);
+        } else {
+            lazyFeatures = Boolean.TRUE.equals(getDataStore().getLazyFeatures());
+        }
+        return lazyFeatures;
+    }
+
+    /**
+     * Generalization distance requested by the renderer, or null if 
+     * geometries are read at full resolution.
+     */
+    private Double getGeometryDistance(Query query) {
+        final Hints hints = query.getHints();
+        Double distance = null;
+        if (hints != null) {
+            distance = (Double) hints.get(Hints.GEOMETRY_DISTANCE);
+            if (distance == null) {
+                distance = (Double) hints.get(Hints.GEOMETRY_SIMPLIFICATION);
+            }
+        }
+        return distance;
+    }
+
+    /**
+     * Number of shards to scan concurrently, or 0 if parallel scans are
+     * disabled.
+     */
+    private int getParallelScanShards() {
+        final ElasticDataStore dataStore = getDataStore();
+        int numShards = 0;
+        if (dataStore.getParallelScan() != null && dataStore.getParallelScan() > 1) {
+            numShards = dataStore.getNumberOfShards();
+        }
+        return numShards;
+    }
 
     private int getSize(Query query) {
-        final int size;
+        int size;
         if (query.getMaxFeatures() < Integer.MAX_VALUE) {
             size = query.getMaxFeatures();
         } else {
             size = DEFAULT_MAX_FEATURES;
         }
+        if (isSample(query)) {
+            size = Math.min(size, getDataStore().getSampleBudget());
+        }
         return size;
     }
 
+    /**
+     * Whether the results are spooled for the further passes of the request,
+     * i.e. the request is identified and geometries are not generalized.
+     */
+    private boolean isSpool(Query query) {
+        return getSpoolRequest(query) != null && getGeometryDistance(query) == null;
+    }
+
+    /**
+     * Identifier of the request from the spool view parameter, or null if
+     * missing or a boolean that would be shared by any request.
+     */
+    private String getSpoolRequest(Query query) {
+        final String request = getViewParameter(query, ElasticSpool.SPOOL_PARAMETER);
+        if (request == null || request.isEmpty() || request.equalsIgnoreCase(Boolean.TRUE.toString())
+                || request.equalsIgnoreCase(Boolean.FALSE.toString())) {
+            return null;
+        }
+        return request;
+    }
+
+    /**
+     * Spooled results of the query if spooling is requested and the query
+     * was read by a previous pass.
+     */
+    private ElasticSpool getSpool(Query query) {
+        ElasticSpool spool = null;
+        if (isSpool(query)) {
+            spool = getDataStore().getSpoolCache().get(getSpoolKey(query));
+        }
+        return spool;
+    }
+
+    /**
+     * Key of the query in the spool cache, identifying the request and the
+     * features read regardless of the properties.
+     */
+    private String getSpoolKey(Query query) {
+        final Hints hints = query.getHints();
+        final Object parameters = hints != null ? hints.get(Hints.VIRTUAL_TABLE_PARAMETERS) : null;
+        return getSpoolRequest(query) + ";" + entry.getTypeName() + ";" + query.getFilter() 
+                + ";" + Arrays.toString(query.getSortBy()) + ";" + query.getStartIndex() 
+                + ";" + query.getMaxFeatures() + ";" + getGeometryDistance(query) + ";" + parameters;
+    }
+
+    /**
+     * Whether the paged query can be read after the sort values of a
+     * previous page, i.e. keyset paging is enabled and the query is only
+     * sorted on not analyzed, not nested properties.
+     */
+    private boolean isKeysetPaging(Query query) throws IOException {
+        final Boolean keysetPaging = getDataStore().getKeysetPaging();
+        if (keysetPaging == null || !keysetPaging || query.getStartIndex() == null) {
+            return false;
+        }
+        if (query.getSortBy() != null) {
+            for (final SortBy sort : query.getSortBy()) {
+                if (sort.getPropertyName() != null) {
+                    final AttributeDescriptor descriptor = getAggregationDescriptor(sort.getPropertyName());
+                    if (descriptor == null) {
+                        return false;
+                    }
+                    final Boolean analyzed = (Boolean) descriptor.getUserData().get(ANALYZED);
+                    if (analyzed != null && analyzed) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Key of the query in the keyset cache, identifying the ordered hits
+     * regardless of the page.
+     */
+    private String getKeysetKey(Query query) {
+        final Hints hints = query.getHints();
+        final Object parameters = hints != null ? hints.get(Hints.VIRTUAL_TABLE_PARAMETERS) : null;
+        return entry.getTypeName() + ";" + query.getFilter() + ";" + Arrays.toString(query.getSortBy())
+                + ";" + parameters;
+    }
+
+    /**
+     * Records the sort values of the last hit of the page, so that the next
+     * page can be read after them.
+     */
+    private void putKeyset(Query query, SearchResponse sr) {
+        final SearchHit[] hits = sr.getHits().getHits();
+        if (hits.length == 0) {
+            return;
+        }
+        final Object[] sortValues = hits[hits.length-1].getSortValues();
+        final Object[] values = new Object[sortValues.length];
+        for (int i=0; i<sortValues.length; i++) {
+            if (sortValues[i] instanceof Text) {
+                values[i] = ((Text) sortValues[i]).string();
+            } else if (sortValues[i] instanceof BytesRef) {
+                values[i] = ((BytesRef) sortValues[i]).utf8ToString();
+            } else if (sortValues[i] != null && !isMissingSortValue(sortValues[i])) {
+                values[i] = sortValues[i];
+            } else {
+                // hits without a sort value are sorted last, and not sought after
+                return;
+            }
+        }
+        getDataStore().getKeysetCache().put(getKeysetKey(query), getStartIndex(query) + hits.length, values);
+    }
+
+    /**
+     * Whether the sort value is the one substituted for hits without a value,
+     * which are sorted last in either order.
+     */
+    private static boolean isMissingSortValue(Object value) {
+        if (value instanceof Long) {
+            return (Long) value == Long.MAX_VALUE || (Long) value == Long.MIN_VALUE;
+        } else if (value instanceof Integer) {
+            return (Integer) value == Integer.MAX_VALUE || (Integer) value == Integer.MIN_VALUE;
+        } else if (value instanceof Double) {
+            return ((Double) value).isInfinite();
+        } else if (value instanceof Float) {
+            return ((Float) value).isInfinite();
+        }
+        return false;
+    }
+
+    /**
+     * Filter matching the hits sorted after the sort values, i.e. hits
+     * whose first differing sort field is after the value or missing, hits
+     * without a value being sorted last. The last field (_uid) is unique.
+     */
+    private FilterBuilder getKeysetFilter(List<String> fields, List<SortOrder> orders, Object[] values) {
+        final OrFilterBuilder filter = FilterBuilders.orFilter();
+        for (int i=0; i<fields.size(); i++) {
+            final AndFilterBuilder clause = FilterBuilders.andFilter();
+            for (int j=0; j<i; j++) {
+                clause.add(FilterBuilders.termFilter(fields.get(j), values[j]));
+            }
+            final RangeFilterBuilder range = FilterBuilders.rangeFilter(fields.get(i));
+            if (orders.get(i) == SortOrder.ASC) {
+                range.gt(values[i]);
+            } else {
+                range.lt(values[i]);
+            }
+            if (i < fields.size() - 1) {
+                clause.add(FilterBuilders.orFilter(range, FilterBuilders.missingFilter(fields.get(i))));
+            } else {
+                clause.add(range);
+            }
+            filter.add(clause);
+        }
+        return filter;
+    }
+
+    /**
+     * Size of the first page of queries without start index, a scroll page
+     * of the learned size so that larger results only read it twice.
+     */
+    private int getFirstPageSize(Query query) {
+        int size = getSize(query);
+        final Integer scrollSize = getDataStore().getScrollSizer().getSize(entry.getTypeName());
+        if (scrollSize != null) {
+            size = Math.min(size, scrollSize);
+        }
+        return size;
+    }
+
+    /**
+     * Maximum number of features of scrolled queries, which unlike single
+     * page queries are not capped.
+     */
+    private int getLimit(Query query) {
+        return query.getMaxFeatures();
+    }
+
     private int getStartIndex(Query query) {
         final int from;
         if (query.getStartIndex() != null) {
@@ -244,9 +1240,7 @@ public class ElasticFeatureSource extends ContentFeatureSource {
 
     @Override
     protected SimpleFeatureType buildFeatureType() throws IOException {
-        ElasticDataStore ds = getDataStore();
-        ElasticLayerConfiguration layerConfig;
-        layerConfig = ds.getLayerConfigurations().get(entry.getTypeName());
+        final ElasticLayerConfiguration layerConfig = getLayerConfiguration();
         final List<ElasticAttribute> attributes;
         if (layerConfig != null) {
             attributes = layerConfig.getAttributes();
@@ -259,14 +1253,24 @@ public class ElasticFeatureSource extends ContentFeatureSource {
         return typeBuilder.buildFeatureType();
     }
 
+    @Override
+    protected void addHints(Set<Hints.Key> hints) {
+        hints.add(LAZY_FEATURES);
+        hints.add(Hints.GEOMETRY_DISTANCE);
+        hints.add(Hints.GEOMETRY_SIMPLIFICATION);
+    }
+
+    /**
+     * Groups are limited, offset and sorted in memory, after post-filtering.
+     */
     @Override
     protected boolean canLimit() {
-        return true;
+        return !isGroup();
     }
 
     @Override
     protected boolean canOffset() {
-        return true;
+        return !isGroup();
     }
 
     @Override
@@ -279,4 +1283,9 @@ public class ElasticFeatureSource extends ContentFeatureSource {
         return true;
     }
 
+    @Override
+    protected boolean canRetype() {
+        return true;
+    }
+
 }
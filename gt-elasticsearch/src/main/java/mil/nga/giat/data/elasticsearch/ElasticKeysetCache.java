@@ -0,0 +1,100 @@
+/**
+ * This file is hereby placed into the Public Domain. This means anyone is
+ * free to do whatever they wish with this file.
+ */
+package mil.nga.giat.data.elasticsearch;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sort values of the last hit of recently served pages, by query and hit
+ * index, so that a page can be read after the sort values of a previous
+ * page boundary instead of collecting and sorting all hits before its
+ * start index on every shard. The least recently used queries are evicted,
+ * and queries are expired after the keyset time since boundaries recorded
+ * before index updates point at shifted hits.
+ */
+public class ElasticKeysetCache {
+
+    static final int MAX_QUERIES = 100;
+
+    static final int MAX_PAGES = 1000;
+
+    private final ElasticDataStore dataStore;
+
+    private final Map<String, Pages> queries;
+
+    public ElasticKeysetCache(ElasticDataStore dataStore) {
+        this.dataStore = dataStore;
+        this.queries = new LinkedHashMap<String, Pages>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Pages> eldest) {
+                return size() > MAX_QUERIES;
+            }
+        };
+    }
+
+    /**
+     * Closest page boundary at or before the index.
+     * @param queryKey Query key
+     * @param index Index of the first hit to read
+     * @return Hit index and sort values of the boundary, the values being
+     * those of the hit preceding the index, or null if none is known
+     */
+    public synchronized Map.Entry<Integer, Object[]> get(String queryKey, int index) {
+        final Pages pages = getPages(queryKey);
+        return pages != null ? pages.floorEntry(index) : null;
+    }
+
+    /**
+     * Records a page boundary.
+     * @param queryKey Query key
+     * @param index Index of the hit following the page
+     * @param sortValues Sort values of the last hit of the page
+     */
+    public synchronized void put(String queryKey, int index, Object[] sortValues) {
+        Pages pages = getPages(queryKey);
+        if (pages == null) {
+            pages = new Pages();
+            queries.put(queryKey, pages);
+        }
+        pages.put(index, sortValues);
+        if (pages.size() > MAX_PAGES) {
+            pages.pollFirstEntry();
+        }
+    }
+
+    /**
+     * Removes all boundaries.
+     */
+    public synchronized void clear() {
+        queries.clear();
+    }
+
+    /**
+     * Page boundaries of the query, removing them if expired.
+     */
+    private Pages getPages(String queryKey) {
+        Pages pages = queries.get(queryKey);
+        final Integer keysetTime = dataStore.getKeysetTime();
+        final long expired = System.currentTimeMillis() - (keysetTime != null ? keysetTime : 0) * 1000L;
+        if (pages != null && pages.created < expired) {
+            queries.remove(queryKey);
+            pages = null;
+        }
+        return pages;
+    }
+
+    private static class Pages extends TreeMap<Integer, Object[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long created = System.currentTimeMillis();
+
+    }
+
+}
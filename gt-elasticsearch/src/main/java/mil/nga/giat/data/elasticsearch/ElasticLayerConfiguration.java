@@ -54,6 +54,10 @@ public class ElasticLayerConfiguration implements Serializable {
     private String layerName;
     
     private final List<ElasticAttribute> attributes;
+
+    private String groupBy;
+
+    private String groupSort;
     
     public ElasticLayerConfiguration(String docType) {
         this.docType = docType;
@@ -64,6 +68,8 @@ public class ElasticLayerConfiguration implements Serializable {
     public ElasticLayerConfiguration(ElasticLayerConfiguration other) {
         this(other.docType);
         setLayerName(other.layerName);
+        setGroupBy(other.groupBy);
+        setGroupSort(other.groupSort);
         for (final ElasticAttribute attribute : other.attributes) {
             attributes.add(new ElasticAttribute(attribute));
         }
@@ -85,4 +91,28 @@ public class ElasticLayerConfiguration implements Serializable {
         return attributes;
     }
 
+    /**
+     * Field used to group documents, in which case only the top document of
+     * each group (see {@link #getGroupSort()}) is returned.
+     */
+    public String getGroupBy() {
+        return groupBy;
+    }
+
+    public void setGroupBy(String groupBy) {
+        this.groupBy = groupBy;
+    }
+
+    /**
+     * Field used to select the top document of each group. The document with
+     * the highest value (e.g. the latest timestamp) is returned.
+     */
+    public String getGroupSort() {
+        return groupSort;
+    }
+
+    public void setGroupSort(String groupSort) {
+        this.groupSort = groupSort;
+    }
+
 }
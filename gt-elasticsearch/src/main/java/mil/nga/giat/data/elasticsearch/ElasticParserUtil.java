@@ -8,20 +8,17 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import org.elasticsearch.ElasticsearchIllegalArgumentException;
-import org.elasticsearch.common.geo.GeoHashUtils;
-import org.elasticsearch.common.geo.GeoPoint;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.LinearRing;
 import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequence;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequenceFactory;
 
 /**
  * Utilities for parsing Elasticsearch document source and field content to 
@@ -30,15 +27,56 @@ import com.vividsolutions.jts.geom.Polygon;
  */
 public class ElasticParserUtil {
 
-    private static final Pattern GEO_POINT_PATTERN;
-    static {
-        GEO_POINT_PATTERN = Pattern.compile("(-*\\d*\\.*\\d*?),(-*\\d*\\.*\\d*?)");
-    }
+    private static final String GEOHASH_BASE_32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+    private static final int[] GEOHASH_BITS = {16, 8, 4, 2, 1};
+
+    private static final int MIN_LINE_SIZE = 2;
+
+    private static final int MIN_RING_SIZE = 4;
+
+    /** Largest mantissa exactly representable as a double */
+    private static final long MAX_EXACT_MANTISSA = (1L << 53) - 1;
+
+    /** Powers of ten exactly representable as a double */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
 
     private final GeometryFactory geometryFactory;
 
+    private final boolean packedCoordinates;
+
+    private double simplificationDistance;
+
     public ElasticParserUtil() {
-        this.geometryFactory = new GeometryFactory();
+        this(false);
+    }
+
+    /**
+     * @param packedCoordinates Whether geo_shape coordinates are decoded
+     * directly into packed coordinate sequences instead of coordinate objects
+     */
+    public ElasticParserUtil(boolean packedCoordinates) {
+        this.packedCoordinates = packedCoordinates;
+        if (packedCoordinates) {
+            final PackedCoordinateSequenceFactory sequenceFactory;
+            sequenceFactory = new PackedCoordinateSequenceFactory(PackedCoordinateSequenceFactory.DOUBLE, 2);
+            this.geometryFactory = new GeometryFactory(sequenceFactory);
+        } else {
+            this.geometryFactory = new GeometryFactory();
+        }
+    }
+
+    /**
+     * Set the distance, in coordinate reference system units, within which
+     * consecutive geo_shape line and ring vertices are merged while decoding
+     * (0 to disable).
+     * @param simplificationDistance Simplification distance
+     */
+    public void setSimplificationDistance(double simplificationDistance) {
+        this.simplificationDistance = simplificationDistance;
     }
 
     /**
@@ -51,39 +89,30 @@ public class ElasticParserUtil {
     public Geometry createGeometry(Object obj) {
         final Geometry geometry;
         if (obj instanceof String) {
-            // geo_point by string
-            final Matcher listMatcher = GEO_POINT_PATTERN.matcher((String) obj);
-            if (listMatcher.matches()) {
-                // coordinates
-                final double y = Double.valueOf(listMatcher.group(1));
-                final double x = Double.valueOf(listMatcher.group(2));
-                geometry = geometryFactory.createPoint(new Coordinate(x,y));
-            } else {
-                // try geohash
-                GeoPoint geoPoint = null;
-                try {
-                    geoPoint = GeoHashUtils.decode((String) obj);
-                } catch (ElasticsearchIllegalArgumentException e) {
-                    // not a geohash
-                }
-                if (geoPoint != null) {
-                    final double lat = geoPoint.lat();
-                    final double lon = geoPoint.lon();
-                    geometry = geometryFactory.createPoint(new Coordinate(lon,lat));
+            // geo_point by "lat,lon" string or geohash
+            final String value = (String) obj;
+            final int comma = value.indexOf(',');
+            if (comma >= 0) {
+                final double y = parseDouble(value, 0, comma);
+                final double x = parseDouble(value, comma+1, value.length());
+                if (!Double.isNaN(x) && !Double.isNaN(y)) {
+                    geometry = geometryFactory.createPoint(new Coordinate(x,y));
                 } else {
                     geometry = null;
                 }
+            } else {
+                geometry = createGeohashPoint(value);
             }
         } else if (obj instanceof List && ((List<?>) obj).size()==2) {
             // geo_point by coordinate array
             final List<?> values = (List<?>) obj;
-            if (Number.class.isAssignableFrom(values.get(0).getClass())) {
+            if (values.get(0) instanceof Number) {
                 final double x = ((Number) values.get(0)).doubleValue();
                 final double y = ((Number) values.get(1)).doubleValue();
                 geometry = geometryFactory.createPoint(new Coordinate(x,y));
             } else if (values.get(0) instanceof String) {
-                final double x = Double.valueOf((String) values.get(0));
-                final double y = Double.valueOf((String) values.get(1));
+                final double x = parseCoordinate((String) values.get(0));
+                final double y = parseCoordinate((String) values.get(1));
                 geometry = geometryFactory.createPoint(new Coordinate(x,y));
             } else {
                 geometry = null;
@@ -115,7 +144,7 @@ public class ElasticParserUtil {
         } case "LINESTRING": {
             final List<List> posList;
             posList = (List) properties.get("coordinates");
-            final Coordinate[] coordinates = createCoordinates(posList);
+            final CoordinateSequence coordinates = createCoordinateSequence(posList, MIN_LINE_SIZE);
             geometry = geometryFactory.createLineString(coordinates);
             break;
         } case "POLYGON": {
@@ -126,7 +155,7 @@ public class ElasticParserUtil {
         } case "MULTIPOINT": {
             final List<List> posList;
             posList = (List) properties.get("coordinates");
-            final Coordinate[] coordinates = createCoordinates(posList);
+            final CoordinateSequence coordinates = createCoordinateSequence(posList, 0);
             geometry = geometryFactory.createMultiPoint(coordinates);
             break;
         } case "MULTILINESTRING": {
@@ -134,7 +163,7 @@ public class ElasticParserUtil {
             posList = (List) properties.get("coordinates");
             final LineString[] lineStrings = new LineString[posList.size()];
             for (int i=0; i<posList.size(); i++) {
-                final Coordinate[] coordinates = createCoordinates(posList.get(i));
+                final CoordinateSequence coordinates = createCoordinateSequence(posList.get(i), MIN_LINE_SIZE);
                 lineStrings[i] = geometryFactory.createLineString(coordinates);
             }
             geometry = geometryFactory.createMultiLineString(lineStrings);
@@ -173,7 +202,7 @@ public class ElasticParserUtil {
                 if (latObj instanceof Double) {
                     lat = (Double)latObj;
                 } else if (latObj instanceof String) {
-                    lat = new Double((String)latObj);
+                    lat = parseCoordinate((String)latObj);
                 } else {
                     lat = null;
                 }
@@ -182,7 +211,7 @@ public class ElasticParserUtil {
                 if (lonObj instanceof Double) {
                     lon = (Double)lonObj;
                 } else if (lonObj instanceof String) {
-                    lon = new Double((String)lonObj);
+                    lon = parseCoordinate((String)lonObj);
                 } else {
                     lon = null;
                 }
@@ -200,17 +229,223 @@ public class ElasticParserUtil {
         return geometry;
     }
 
+    /**
+     * Create polygon geometry covering a geohash cell.
+     * @param geohash Geohash
+     * @return Cell polygon or null if not a valid geohash
+     */
+    public Geometry createGeohashCell(String geohash) {
+        final double[] interval = decodeGeohashCell(geohash);
+        final Geometry geometry;
+        if (interval != null) {
+            final Envelope envelope = new Envelope(interval[2], interval[3], interval[0], interval[1]);
+            geometry = geometryFactory.toGeometry(envelope);
+        } else {
+            geometry = null;
+        }
+        return geometry;
+    }
+
+    /**
+     * Decode geohash cell bounds.
+     * @param geohash Geohash
+     * @return Cell bounds as {minLat, maxLat, minLon, maxLon} or null if not a
+     * valid geohash
+     */
+    static double[] decodeGeohashCell(String geohash) {
+        final double[] interval = {-90.0, 90.0, -180.0, 180.0};
+        boolean isEven = true;
+        for (int i=0; i<geohash.length(); i++) {
+            final int cd = GEOHASH_BASE_32.indexOf(geohash.charAt(i));
+            if (cd < 0) {
+                return null;
+            }
+            for (int mask : GEOHASH_BITS) {
+                if (isEven) {
+                    if ((cd & mask) != 0) {
+                        interval[2] = (interval[2] + interval[3]) / 2D;
+                    } else {
+                        interval[3] = (interval[2] + interval[3]) / 2D;
+                    }
+                } else {
+                    if ((cd & mask) != 0) {
+                        interval[0] = (interval[0] + interval[1]) / 2D;
+                    } else {
+                        interval[1] = (interval[0] + interval[1]) / 2D;
+                    }
+                }
+                isEven = !isEven;
+            }
+        }
+        return interval;
+    }
+
+    /**
+     * Create point at the center of a geohash cell.
+     * @param geohash Geohash
+     * @return Cell center or null if not a valid geohash
+     */
+    private Geometry createGeohashPoint(String geohash) {
+        final double[] interval = decodeGeohashCell(geohash);
+        final Geometry geometry;
+        if (interval != null) {
+            final double lat = (interval[0] + interval[1]) / 2D;
+            final double lon = (interval[2] + interval[3]) / 2D;
+            geometry = geometryFactory.createPoint(new Coordinate(lon,lat));
+        } else {
+            geometry = null;
+        }
+        return geometry;
+    }
+
+    /**
+     * Parse coordinate string, falling back to {@link Double#parseDouble(String)}
+     * for values outside the plain decimal format (e.g. exponents or padding).
+     * @param value Coordinate string
+     * @return Coordinate value
+     * @throws NumberFormatException if the value is not a number
+     */
+    static double parseCoordinate(String value) {
+        double result = parseDouble(value, 0, value.length());
+        if (Double.isNaN(result)) {
+            result = Double.parseDouble(value);
+        }
+        return result;
+    }
+
+    /**
+     * Parse plain decimal number ({@code -?\d*\.?\d*} with at least one
+     * digit) from part of a string without allocating. Values with more
+     * significant digits than can be converted exactly are delegated to
+     * {@link Double#parseDouble(String)}, so results are always identical.
+     * @param value String
+     * @param start Start index (inclusive)
+     * @param end End index (exclusive)
+     * @return Parsed value or NaN if not a plain decimal number
+     */
+    static double parseDouble(String value, int start, int end) {
+        int i = start;
+        final boolean negative = i < end && value.charAt(i) == '-';
+        if (negative) {
+            i++;
+        }
+        long mantissa = 0;
+        int numDigits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        boolean exact = true;
+        for (; i<end; i++) {
+            final char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                numDigits++;
+                if (mantissa < MAX_EXACT_MANTISSA) {
+                    mantissa = mantissa*10 + (c - '0');
+                    if (fraction) {
+                        scale++;
+                    }
+                } else {
+                    exact = false;
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                return Double.NaN;
+            }
+        }
+
+        final double result;
+        if (numDigits == 0) {
+            result = Double.NaN;
+        } else if (exact && mantissa <= MAX_EXACT_MANTISSA && scale < POWERS_OF_TEN.length) {
+            // both operands are exact so the division is correctly rounded
+            final double absolute = mantissa / POWERS_OF_TEN[scale];
+            result = negative ? -absolute : absolute;
+        } else {
+            result = Double.parseDouble(value.substring(start, end));
+        }
+        return result;
+    }
+
     private Polygon createPolygon(final List<List<List>> posList) {
-        final Coordinate[] shellCoordinates = createCoordinates(posList.get(0));
+        final CoordinateSequence shellCoordinates = createCoordinateSequence(posList.get(0), MIN_RING_SIZE);
         final LinearRing shell = geometryFactory.createLinearRing(shellCoordinates);
         final LinearRing[] holes = new LinearRing[posList.size()-1];
         for (int i=1; i<posList.size(); i++) {
-            final Coordinate[] coordinates = createCoordinates(posList.get(i));
+            final CoordinateSequence coordinates = createCoordinateSequence(posList.get(i), MIN_RING_SIZE);
             holes[i-1] = geometryFactory.createLinearRing(coordinates);
         }
         return geometryFactory.createPolygon(shell, holes);
     }
     
+    /**
+     * Create coordinate sequence, packed into a single ordinate array sized
+     * from the position list when packed coordinates are enabled. When a
+     * simplification distance is set, vertices within the distance of the
+     * previous vertex are dropped while reading, keeping the end points and
+     * at least the given number of vertices.
+     * @param posList Position list
+     * @param minSize Minimum number of vertices of a simplified sequence, or
+     * 0 to never simplify
+     */
+    private CoordinateSequence createCoordinateSequence(final List<List> posList, final int minSize) {
+        final boolean simplify = simplificationDistance > 0 && minSize > 0;
+        if (!packedCoordinates && !simplify) {
+            return geometryFactory.getCoordinateSequenceFactory().create(createCoordinates(posList));
+        }
+
+        double[] ordinates = readOrdinates(posList, simplify ? simplificationDistance : 0);
+        if (ordinates.length/2 < minSize && ordinates.length/2 < posList.size()) {
+            // too few vertices left for a valid geometry
+            ordinates = readOrdinates(posList, 0);
+        }
+
+        final CoordinateSequence sequence;
+        if (packedCoordinates) {
+            sequence = new PackedCoordinateSequence.Double(ordinates, 2);
+        } else {
+            final Coordinate[] coordinates = new Coordinate[ordinates.length/2];
+            for (int i=0; i<coordinates.length; i++) {
+                coordinates[i] = new Coordinate(ordinates[i*2], ordinates[i*2+1]);
+            }
+            sequence = geometryFactory.getCoordinateSequenceFactory().create(coordinates);
+        }
+        return sequence;
+    }
+
+    /**
+     * Read interleaved x/y ordinates, dropping vertices within the distance
+     * of the previously kept vertex, except for the last vertex.
+     */
+    private double[] readOrdinates(final List<List> posList, final double distance) {
+        final int size = posList.size();
+        final double[] ordinates = new double[size*2];
+        int n = 0;
+        for (int i=0; i<size; i++) {
+            final List pos = posList.get(i);
+            final double x = readOrdinate(pos.get(0));
+            final double y = readOrdinate(pos.get(1));
+            if (distance > 0 && n > 0 && i < size-1 
+                    && Math.abs(x-ordinates[n*2-2]) <= distance 
+                    && Math.abs(y-ordinates[n*2-1]) <= distance) {
+                continue;
+            }
+            ordinates[n*2] = x;
+            ordinates[n*2+1] = y;
+            n++;
+        }
+        return n < size ? Arrays.copyOf(ordinates, n*2) : ordinates;
+    }
+
+    private double readOrdinate(final Object value) {
+        final double ordinate;
+        if (value instanceof Number) {
+            ordinate = ((Number) value).doubleValue();
+        } else {
+            ordinate = Double.valueOf(value.toString());
+        }
+        return ordinate;
+    }
+
     private Coordinate[] createCoordinates(final List<List> posList) {
         final Coordinate[] coordinates = new Coordinate[posList.size()];
         for (int i=0; i<posList.size(); i++) {
@@ -0,0 +1,190 @@
+/**
+ * This file is hereby placed into the Public Domain. This means anyone is
+ * free to do whatever they wish with this file.
+ */
+package mil.nga.giat.data.elasticsearch;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.client.Client;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Registry of the scroll contexts opened by the readers of a data store.
+ * Scrolls are cleared on the cluster as soon as their reader no longer
+ * needs them, instead of being kept alive until the scroll time expires.
+ * Readers discarded without being closed are detected once garbage
+ * collected and their scrolls cleared and counted as leaked.
+ */
+public class ElasticScrollRegistry {
+
+    private final static Logger LOGGER = Logging.getLogger(ElasticScrollRegistry.class);
+
+    private final ElasticDataStore dataStore;
+
+    private final Set<ScrollReference> scrolls;
+
+    private final ReferenceQueue<Object> orphans;
+
+    private final AtomicLong clearedCount;
+
+    private final AtomicLong leakedCount;
+
+    public ElasticScrollRegistry(ElasticDataStore dataStore) {
+        this.dataStore = dataStore;
+        this.scrolls = Collections.newSetFromMap(new ConcurrentHashMap<ScrollReference, Boolean>());
+        this.orphans = new ReferenceQueue<>();
+        this.clearedCount = new AtomicLong();
+        this.leakedCount = new AtomicLong();
+    }
+
+    /**
+     * Registers the scroll opened by the reader.
+     * @param reader Reader owning the scroll, only weakly referenced
+     * @param scrollId Scroll id
+     * @return Registration to update with new scroll ids and to release
+     */
+    public ScrollReference register(Object reader, String scrollId) {
+        reap();
+        final ScrollReference scroll = new ScrollReference(reader, scrollId, orphans);
+        scrolls.add(scroll);
+        return scroll;
+    }
+
+    /**
+     * Updates the scroll id of the registration, as returned by the last
+     * scroll request.
+     */
+    public void update(ScrollReference scroll, String scrollId) {
+        if (scrollId != null) {
+            scroll.scrollId = scrollId;
+        }
+    }
+
+    /**
+     * Clears the scroll of the registration if not already released.
+     */
+    public void release(ScrollReference scroll) {
+        if (scrolls.remove(scroll)) {
+            scroll.clear();
+            clearScroll(scroll.scrollId);
+            clearedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Clears the scrolls of readers garbage collected without having been
+     * closed.
+     * @return Number of scrolls reaped
+     */
+    public int reap() {
+        int count = 0;
+        Reference<?> reference;
+        while ((reference = orphans.poll()) != null) {
+            final ScrollReference scroll = (ScrollReference) reference;
+            if (scrolls.remove(scroll)) {
+                LOGGER.fine("Clearing scroll of reader not closed: " + scroll.scrollId);
+                clearScroll(scroll.scrollId);
+                leakedCount.incrementAndGet();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Clears all open scrolls, waiting for the requests to complete.
+     */
+    public void clearAll() {
+        final List<String> scrollIds = new ArrayList<>();
+        for (final ScrollReference scroll : scrolls) {
+            if (scrolls.remove(scroll)) {
+                scroll.clear();
+                scrollIds.add(scroll.scrollId);
+            }
+        }
+        if (!scrollIds.isEmpty()) {
+            try {
+                dataStore.getClient().prepareClearScroll().setScrollIds(scrollIds).execute().actionGet();
+                clearedCount.addAndGet(scrollIds.size());
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error clearing scrolls: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Number of scrolls currently open by readers.
+     */
+    public int getOpenCount() {
+        reap();
+        return scrolls.size();
+    }
+
+    /**
+     * Number of scrolls cleared after their reader was closed or exhausted.
+     */
+    public long getClearedCount() {
+        return clearedCount.get();
+    }
+
+    /**
+     * Number of scrolls cleared after their reader was garbage collected
+     * without having been closed.
+     */
+    public long getLeakedCount() {
+        reap();
+        return leakedCount.get();
+    }
+
+    /**
+     * Clears the scroll in the background, failures being logged only
+     * since the scroll expires anyway after the scroll time.
+     */
+    void clearScroll(final String scrollId) {
+        final Client client = dataStore.getClient();
+        client.prepareClearScroll().addScrollId(scrollId).execute(new ActionListener<ClearScrollResponse>() {
+            @Override
+            public void onResponse(ClearScrollResponse response) {
+                LOGGER.finest("Cleared scroll " + scrollId);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                LOGGER.log(Level.FINE, "Error clearing scroll " + scrollId, e);
+            }
+        });
+    }
+
+    /**
+     * Weak reference to the reader holding the last scroll id, so that the
+     * scroll can still be cleared once the reader is collected.
+     */
+    public static class ScrollReference extends WeakReference<Object> {
+
+        private volatile String scrollId;
+
+        ScrollReference(Object reader, String scrollId, ReferenceQueue<Object> queue) {
+            super(reader, queue);
+            this.scrollId = scrollId;
+        }
+
+        public String getScrollId() {
+            return scrollId;
+        }
+
+    }
+
+}
@@ -0,0 +1,93 @@
+/**
+ * This file is hereby placed into the Public Domain. This means anyone is
+ * free to do whatever they wish with this file.
+ */
+package mil.nga.giat.data.elasticsearch;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Scroll page sizes learned per layer from the observed page bytes and
+ * round trip times, so that pages of small documents grow up to the
+ * configured page bytes and latency while pages of large documents shrink
+ * below them. The learned size is used by the next scan of the layer,
+ * the size of a scan being fixed once started.
+ */
+public class ElasticScrollSizer {
+
+    static final int MAX_SIZE = 10000;
+
+    private static final double MAX_GROWTH = 2;
+
+    private static final double MAX_SHRINK = 0.5;
+
+    private final ElasticDataStore dataStore;
+
+    private final Map<String, Integer> sizes;
+
+    public ElasticScrollSizer(ElasticDataStore dataStore) {
+        this.dataStore = dataStore;
+        this.sizes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Whether page sizes are adapted, i.e. either page bound is set.
+     */
+    public boolean isEnabled() {
+        return getPageBytes() > 0 || getPageMillis() > 0;
+    }
+
+    /**
+     * Scroll size for the layer, the configured scroll size until a size
+     * has been learned.
+     * @param typeName Layer name
+     * @return Scroll size, or null if neither learned nor configured
+     */
+    public Integer getSize(String typeName) {
+        Integer size = null;
+        if (isEnabled()) {
+            size = sizes.get(typeName);
+        }
+        if (size == null && dataStore.getScrollSize() != null) {
+            size = dataStore.getScrollSize().intValue();
+        }
+        return size;
+    }
+
+    /**
+     * Adapts the size of the layer from a full page.
+     * @param typeName Layer name
+     * @param size Scroll size the page was requested with
+     * @param bytes Source bytes of the page hits
+     * @param millis Round trip time of the page request
+     */
+    public void update(String typeName, int size, long bytes, long millis) {
+        if (!isEnabled()) {
+            return;
+        }
+        double factor = MAX_GROWTH;
+        final long pageBytes = getPageBytes();
+        if (pageBytes > 0 && bytes > 0) {
+            factor = Math.min(factor, pageBytes / (double) bytes);
+        }
+        final long pageMillis = getPageMillis();
+        if (pageMillis > 0 && millis > 0) {
+            factor = Math.min(factor, pageMillis / (double) millis);
+        }
+        factor = Math.max(factor, MAX_SHRINK);
+        final int newSize = (int) Math.max(1, Math.min(MAX_SIZE, Math.round(size*factor)));
+        sizes.put(typeName, newSize);
+    }
+
+    private long getPageBytes() {
+        final Long pageBytes = dataStore.getScrollPageBytes();
+        return pageBytes != null ? pageBytes : 0;
+    }
+
+    private long getPageMillis() {
+        final Integer pageMillis = dataStore.getScrollPageMillis();
+        return pageMillis != null ? pageMillis : 0;
+    }
+
+}
@@ -0,0 +1,161 @@
+/**
+ * This file is hereby placed into the Public Domain. This means anyone is
+ * free to do whatever they wish with this file.
+ */
+package mil.nga.giat.data.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentParser.Token;
+
+/**
+ * Streaming decoder reading the values of a fixed set of fields from the
+ * document source bytes in a single pass, without building the source map.
+ * Subtrees not leading to a requested field are skipped. Values are
+ * equivalent to those returned by
+ * {@link ElasticParserUtil#readField(Map, String)} for each field.
+ */
+public class ElasticSourceDecoder {
+
+    private final Node root;
+
+    private final int numFields;
+
+    /**
+     * @param fieldNames Full (dotted) field names, indexed by slot
+     */
+    public ElasticSourceDecoder(List<String> fieldNames) {
+        this.root = new Node();
+        this.numFields = fieldNames.size();
+        for (int i=0; i<numFields; i++) {
+            Node node = root;
+            for (final String key : fieldNames.get(i).split("\\.")) {
+                Node child = node.children.get(key);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(key, child);
+                }
+                child.slots.add(i);
+                node = child;
+            }
+            node.slot = i;
+        }
+    }
+
+    /**
+     * Decodes the source.
+     * @param source Document source
+     * @return Values for each field slot, or null for missing fields
+     */
+    @SuppressWarnings("unchecked")
+    public List<Object>[] decode(BytesReference source) throws IOException {
+        final List<Object>[] values = new List[numFields];
+        final XContentParser parser = XContentHelper.createParser(source);
+        try {
+            if (parser.nextToken() == Token.START_OBJECT) {
+                readObject(parser, root, values);
+            }
+        } finally {
+            parser.close();
+        }
+        return values;
+    }
+
+    private void readObject(XContentParser parser, Node node, List<Object>[] values) throws IOException {
+        Token token;
+        while ((token = parser.nextToken()) == Token.FIELD_NAME) {
+            final Node child = node.children.get(parser.currentName());
+            token = parser.nextToken();
+            if (child == null) {
+                parser.skipChildren();
+            } else {
+                readValue(parser, token, child, values);
+            }
+        }
+    }
+
+    private void readValue(XContentParser parser, Token token, Node node, List<Object>[] values) throws IOException {
+        if (token == Token.START_ARRAY) {
+            while ((token = parser.nextToken()) != Token.END_ARRAY) {
+                readValue(parser, token, node, values);
+            }
+        } else if (token == Token.START_OBJECT) {
+            if (node.slot < 0) {
+                readObject(parser, node, values);
+            } else {
+                // requested object (e.g. geo_shape), also walked for any requested children
+                final Map<String, Object> map = parser.map();
+                add(values, node.slot, map);
+                for (final Map.Entry<String, Node> entry : node.children.entrySet()) {
+                    readEntry(map.get(entry.getKey()), entry.getValue(), values);
+                }
+            }
+        } else if (token != Token.VALUE_NULL) {
+            // scalar values are returned for the field and any requested children
+            final Object value = readScalar(parser, token);
+            for (final int slot : node.slots) {
+                add(values, slot, value);
+            }
+        }
+    }
+
+    private void readEntry(Object entry, Node node, List<Object>[] values) {
+        if (entry == null) {
+        } else if (entry instanceof List) {
+            for (final Object object : (List<?>) entry) {
+                readEntry(object, node, values);
+            }
+        } else if (entry instanceof Map) {
+            if (node.slot >= 0) {
+                add(values, node.slot, entry);
+            }
+            for (final Map.Entry<String, Node> child : node.children.entrySet()) {
+                readEntry(((Map<?,?>) entry).get(child.getKey()), child.getValue(), values);
+            }
+        } else {
+            for (final int slot : node.slots) {
+                add(values, slot, entry);
+            }
+        }
+    }
+
+    private Object readScalar(XContentParser parser, Token token) throws IOException {
+        final Object value;
+        if (token == Token.VALUE_STRING) {
+            value = parser.text();
+        } else if (token == Token.VALUE_NUMBER) {
+            value = parser.numberValue();
+        } else if (token == Token.VALUE_BOOLEAN) {
+            value = parser.booleanValue();
+        } else {
+            value = parser.objectText();
+        }
+        return value;
+    }
+
+    private void add(List<Object>[] values, int slot, Object value) {
+        if (values[slot] == null) {
+            values[slot] = new ArrayList<>();
+        }
+        values[slot].add(value);
+    }
+
+    private static class Node {
+
+        private final Map<String, Node> children = new HashMap<>();
+
+        /** Slots of the field ending at this node and of all requested children */
+        private final List<Integer> slots = new ArrayList<>();
+
+        private int slot = -1;
+
+    }
+
+}
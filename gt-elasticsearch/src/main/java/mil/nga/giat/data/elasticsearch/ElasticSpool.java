@@ -0,0 +1,451 @@
+/**
+ * This file is hereby placed into the Public Domain. This means anyone is
+ * free to do whatever they wish with this file.
+ */
+package mil.nga.giat.data.elasticsearch;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.geotools.data.FeatureReader;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+
+/**
+ * Features of a query spooled to a memory mapped temporary file, so that
+ * the further passes of a request over the same query (count, bounds and
+ * rendering passes) are read from the file rather than from Elasticsearch.
+ * Attribute values are written with a type tag followed by a compact
+ * binary encoding, geometries as WKB. The file is only readable by its
+ * owner where supported.
+ */
+public class ElasticSpool {
+
+    private final static Logger LOGGER = Logging.getLogger(ElasticSpool.class);
+
+    /**
+     * View parameter enabling spooling for the request, identified by its
+     * value (e.g. a UUID generated by the client for each request).
+     */
+    public static final String SPOOL_PARAMETER = "spool";
+
+    private static final byte NULL = 0;
+
+    private static final byte STRING = 1;
+
+    private static final byte INTEGER = 2;
+
+    private static final byte LONG = 3;
+
+    private static final byte DOUBLE = 4;
+
+    private static final byte FLOAT = 5;
+
+    private static final byte BOOLEAN = 6;
+
+    private static final byte DATE = 7;
+
+    private static final byte GEOMETRY = 8;
+
+    private static final byte SHORT = 9;
+
+    private static final byte LIST = 10;
+
+    private static final byte MAP = 11;
+
+    private static final Set<PosixFilePermission> PERMISSIONS = PosixFilePermissions.fromString("rw-------");
+
+    private final SimpleFeatureType featureType;
+
+    private final File file;
+
+    private final ByteBuffer buffer;
+
+    private final int count;
+
+    private final ReferencedEnvelope bounds;
+
+    private final long created;
+
+    private ElasticSpool(SimpleFeatureType featureType, File file, ByteBuffer buffer, int count,
+            ReferencedEnvelope bounds) {
+        this.featureType = featureType;
+        this.file = file;
+        this.buffer = buffer;
+        this.count = count;
+        this.bounds = bounds;
+        this.created = System.currentTimeMillis();
+    }
+
+    public SimpleFeatureType getFeatureType() {
+        return featureType;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public ReferencedEnvelope getBounds() {
+        return new ReferencedEnvelope(bounds);
+    }
+
+    public long getSize() {
+        return buffer.limit();
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Whether the spooled features have all attributes of the feature type.
+     */
+    public boolean covers(SimpleFeatureType featureType) {
+        for (final AttributeDescriptor descriptor : featureType.getAttributeDescriptors()) {
+            if (this.featureType.getDescriptor(descriptor.getLocalName()) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the spooled bounds are those of the schema, i.e. all schema
+     * geometries have been spooled.
+     */
+    public boolean coversBounds(SimpleFeatureType schema) {
+        for (final AttributeDescriptor descriptor : schema.getAttributeDescriptors()) {
+            if (descriptor instanceof GeometryDescriptor
+                    && featureType.getDescriptor(descriptor.getLocalName()) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public FeatureReader<SimpleFeatureType, SimpleFeature> getReader() {
+        return new SpoolReader(buffer.duplicate());
+    }
+
+    /**
+     * Deletes the file. Readers already open keep reading the mapping.
+     */
+    public void dispose() {
+        delete(file);
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private class SpoolReader implements FeatureReader<SimpleFeatureType, SimpleFeature> {
+
+        private final ByteBuffer buffer;
+
+        private final SimpleFeatureBuilder builder;
+
+        private final WKBReader wkbReader;
+
+        private int numFeatures;
+
+        SpoolReader(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.builder = new SimpleFeatureBuilder(featureType);
+            this.wkbReader = new WKBReader();
+        }
+
+        @Override
+        public SimpleFeatureType getFeatureType() {
+            return featureType;
+        }
+
+        @Override
+        public SimpleFeature next() throws IOException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final String id = readString();
+            for (int i=0; i<featureType.getAttributeCount(); i++) {
+                builder.set(i, readValue());
+            }
+            numFeatures++;
+            return builder.buildFeature(id);
+        }
+
+        @Override
+        public boolean hasNext() throws IOException {
+            return numFeatures < count;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+
+        private String readString() {
+            final byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private Object readValue() throws IOException {
+            final byte tag = buffer.get();
+            final Object value;
+            switch (tag) {
+            case NULL:
+                value = null;
+                break;
+            case STRING:
+                value = readString();
+                break;
+            case INTEGER:
+                value = buffer.getInt();
+                break;
+            case LONG:
+                value = buffer.getLong();
+                break;
+            case DOUBLE:
+                value = buffer.getDouble();
+                break;
+            case FLOAT:
+                value = buffer.getFloat();
+                break;
+            case BOOLEAN:
+                value = buffer.get() != 0;
+                break;
+            case DATE:
+                value = new Date(buffer.getLong());
+                break;
+            case SHORT:
+                value = buffer.getShort();
+                break;
+            case GEOMETRY:
+                final byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                value = readGeometry(bytes);
+                break;
+            case LIST:
+                final int size = buffer.getInt();
+                final List<Object> list = new ArrayList<>(size);
+                for (int i=0; i<size; i++) {
+                    list.add(readValue());
+                }
+                value = list;
+                break;
+            case MAP:
+                final int numEntries = buffer.getInt();
+                final Map<Object,Object> map = new LinkedHashMap<>();
+                for (int i=0; i<numEntries; i++) {
+                    map.put(readValue(), readValue());
+                }
+                value = map;
+                break;
+            default:
+                throw new IOException("Invalid spool value type " + tag);
+            }
+            return value;
+        }
+
+        private Geometry readGeometry(byte[] bytes) throws IOException {
+            try {
+                return wkbReader.read(bytes);
+            } catch (ParseException e) {
+                throw new IOException("Error reading spooled geometry", e);
+            }
+        }
+
+    }
+
+    /**
+     * Writes features to a temporary file, up to a maximum size.
+     */
+    public static class Writer {
+
+        private final SimpleFeatureType featureType;
+
+        private final long maxBytes;
+
+        private final File file;
+
+        private final DataOutputStream out;
+
+        private final WKBWriter wkbWriter;
+
+        private final ReferencedEnvelope bounds;
+
+        private int count;
+
+        public Writer(SimpleFeatureType featureType, long maxBytes) throws IOException {
+            this.featureType = featureType;
+            this.maxBytes = Math.min(maxBytes, Integer.MAX_VALUE);
+            this.file = createFile();
+            try {
+                this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            } catch (IOException e) {
+                delete(file);
+                throw e;
+            }
+            this.wkbWriter = new WKBWriter();
+            this.bounds = new ReferencedEnvelope(featureType.getCoordinateReferenceSystem());
+        }
+
+        /**
+         * Writes the feature.
+         * @return False if the feature could not be written since the
+         * maximum size was reached or a value cannot be encoded, in which
+         * case the writer should be discarded
+         */
+        public boolean write(SimpleFeature feature) throws IOException {
+            writeString(feature.getID());
+            for (int i=0; i<featureType.getAttributeCount(); i++) {
+                if (!writeValue(feature.getAttribute(i))) {
+                    return false;
+                }
+            }
+            bounds.include(feature.getBounds());
+            count++;
+            return out.size() < maxBytes;
+        }
+
+        /**
+         * Completes the spool, mapping the written file.
+         */
+        public ElasticSpool finish() throws IOException {
+            final ByteBuffer buffer;
+            try {
+                out.close();
+                try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                        FileChannel channel = raf.getChannel()) {
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+            } catch (IOException e) {
+                delete(file);
+                throw e;
+            }
+            LOGGER.fine("Spooled " + count + " features (" + buffer.limit() + " bytes)");
+            return new ElasticSpool(featureType, file, buffer, count, bounds);
+        }
+
+        public void discard() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.fine("Error closing spool: " + e.getMessage());
+            }
+            delete(file);
+        }
+
+        /**
+         * Temporary file only readable and writable by the owner.
+         */
+        private static File createFile() throws IOException {
+            final File file;
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                file = Files.createTempFile("elastic", ".spool", PosixFilePermissions.asFileAttribute(PERMISSIONS))
+                        .toFile();
+            } else {
+                file = File.createTempFile("elastic", ".spool");
+                if (!(file.setReadable(false, false) && file.setReadable(true, true)
+                        && file.setWritable(false, false) && file.setWritable(true, true))) {
+                    delete(file);
+                    throw new IOException("Cannot restrict spool file permissions");
+                }
+            }
+            return file;
+        }
+
+        private void writeString(String value) throws IOException {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private boolean writeValue(Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value instanceof String) {
+                out.writeByte(STRING);
+                writeString((String) value);
+            } else if (value instanceof Integer) {
+                out.writeByte(INTEGER);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof Float) {
+                out.writeByte(FLOAT);
+                out.writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                out.writeByte(BOOLEAN);
+                out.writeByte((Boolean) value ? 1 : 0);
+            } else if (value.getClass() == Date.class) {
+                out.writeByte(DATE);
+                out.writeLong(((Date) value).getTime());
+            } else if (value instanceof Short) {
+                out.writeByte(SHORT);
+                out.writeShort((Short) value);
+            } else if (value instanceof Geometry) {
+                out.writeByte(GEOMETRY);
+                final byte[] bytes = wkbWriter.write((Geometry) value);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            } else if (value instanceof List) {
+                final List<?> list = (List<?>) value;
+                out.writeByte(LIST);
+                out.writeInt(list.size());
+                for (final Object item : list) {
+                    if (!writeValue(item)) {
+                        return false;
+                    }
+                }
+            } else if (value instanceof Map) {
+                final Map<?,?> map = (Map<?,?>) value;
+                out.writeByte(MAP);
+                out.writeInt(map.size());
+                for (final Map.Entry<?,?> entry : map.entrySet()) {
+                    if (!writeValue(entry.getKey()) || !writeValue(entry.getValue())) {
+                        return false;
+                    }
+                }
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+    }
+
+}
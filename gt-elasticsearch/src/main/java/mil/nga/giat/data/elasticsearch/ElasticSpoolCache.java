@@ -0,0 +1,79 @@
+/**
+ * This file is hereby placed into the Public Domain. This means anyone is
+ * free to do whatever they wish with this file.
+ */
+package mil.nga.giat.data.elasticsearch;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Spooled query results of a data store, by request and query, kept for the
+ * spool time so that they are shared by the passes of a request but not
+ * served to other requests.
+ */
+public class ElasticSpoolCache {
+
+    private final ElasticDataStore dataStore;
+
+    private final ConcurrentMap<String, ElasticSpool> spools;
+
+    public ElasticSpoolCache(ElasticDataStore dataStore) {
+        this.dataStore = dataStore;
+        this.spools = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Spooled results of the query, or null if none or expired.
+     */
+    public ElasticSpool get(String queryKey) {
+        expire();
+        return spools.get(queryKey);
+    }
+
+    /**
+     * Adds the spooled results of the query, unless results have already
+     * been spooled by a concurrent pass.
+     */
+    public void put(String queryKey, ElasticSpool spool) {
+        expire();
+        final ElasticSpool previous = spools.putIfAbsent(queryKey, spool);
+        if (previous != null) {
+            spool.dispose();
+        }
+    }
+
+    /**
+     * Maximum size in bytes of spooled results.
+     */
+    public long getMaxBytes() {
+        final Long maxBytes = dataStore.getSpoolMaxBytes();
+        return maxBytes != null ? maxBytes : 0;
+    }
+
+    /**
+     * Removes the expired spools.
+     */
+    public void expire() {
+        final Integer spoolTime = dataStore.getSpoolTime();
+        final long expired = System.currentTimeMillis() - (spoolTime != null ? spoolTime : 0) * 1000L;
+        for (final Map.Entry<String, ElasticSpool> entry : spools.entrySet()) {
+            if (entry.getValue().getCreated() < expired && spools.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().dispose();
+            }
+        }
+    }
+
+    /**
+     * Removes all spools.
+     */
+    public void clear() {
+        for (final Map.Entry<String, ElasticSpool> entry : spools.entrySet()) {
+            if (spools.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().dispose();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+/**
+ * This file is hereby placed into the Public Domain. This means anyone is
+ * free to do whatever they wish with this file.
+ */
+package mil.nga.giat.data.elasticsearch;
+
+import static mil.nga.giat.data.elasticsearch.ElasticLayerConfiguration.DATE_FORMAT;
+import static mil.nga.giat.data.elasticsearch.ElasticLayerConfiguration.FULL_NAME;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogram;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.stats.Stats;
+import org.geotools.data.Query;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.util.DateRange;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.filter.FilterFactory;
+
+/**
+ * Computes the time domain of a date attribute (e.g. for WMS/WMTS TIME
+ * dimensions) using Elasticsearch aggregations instead of reading every
+ * document. The domain is computed on the documents matching the query filter.
+ * <p>
+ * Methods return null if the attribute is not a date field with a configured
+ * date format or the query filter is not fully supported.
+ * </p>
+ */
+public class ElasticTimeDomain {
+
+    private static final FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
+
+    private static final String DOMAIN_AGGREGATION = "domain";
+
+    private final ElasticFeatureSource featureSource;
+
+    public ElasticTimeDomain(ElasticFeatureSource featureSource) {
+        this.featureSource = featureSource;
+    }
+
+    /**
+     * Name of the first date attribute with a configured date format, or
+     * null if there is none.
+     */
+    public String getDateAttribute() throws IOException {
+        for (final AttributeDescriptor descriptor : featureSource.getSchema().getAttributeDescriptors()) {
+            if (getField(descriptor.getLocalName()) != null) {
+                return descriptor.getLocalName();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Minimum and maximum date, computed with a stats aggregation. Returns an
+     * empty domain as null.
+     */
+    public DateRange getRange(Query query, String attribute) throws IOException {
+        final String field = getField(attribute);
+        if (field == null) {
+            return null;
+        }
+        final Aggregations aggregations = featureSource.aggregate(query,
+                AggregationBuilders.stats(DOMAIN_AGGREGATION).field(field));
+        if (aggregations == null) {
+            return null;
+        }
+        final Stats stats = aggregations.get(DOMAIN_AGGREGATION);
+        if (stats.getCount() == 0) {
+            return null;
+        }
+        return new DateRange(new Date((long) stats.getMin()), new Date((long) stats.getMax()));
+    }
+
+    /**
+     * Distinct dates, computed with a terms aggregation.
+     */
+    public SortedSet<Date> getValues(Query query, String attribute) throws IOException {
+        final String field = getField(attribute);
+        if (field == null) {
+            return null;
+        }
+        final Aggregations aggregations = featureSource.aggregate(query,
+                AggregationBuilders.terms(DOMAIN_AGGREGATION).field(field).size(0));
+        if (aggregations == null) {
+            return null;
+        }
+        final Terms terms = aggregations.get(DOMAIN_AGGREGATION);
+        final SortedSet<Date> values = new TreeSet<>();
+        for (final Terms.Bucket bucket : terms.getBuckets()) {
+            values.add(new Date(bucket.getKeyAsNumber().longValue()));
+        }
+        return values;
+    }
+
+    /**
+     * Start dates of the non-empty intervals, computed with a date_histogram
+     * aggregation. The interval is an Elasticsearch date histogram interval
+     * expression (e.g. "1d", "month", "6h").
+     */
+    public SortedSet<Date> getValues(Query query, String attribute, String interval) throws IOException {
+        final String field = getField(attribute);
+        if (field == null) {
+            return null;
+        }
+        final Aggregations aggregations = featureSource.aggregate(query,
+                AggregationBuilders.dateHistogram(DOMAIN_AGGREGATION).field(field)
+                .interval(new DateHistogram.Interval(interval)).minDocCount(1));
+        if (aggregations == null) {
+            return null;
+        }
+        final DateHistogram histogram = aggregations.get(DOMAIN_AGGREGATION);
+        final SortedSet<Date> values = new TreeSet<>();
+        for (final DateHistogram.Bucket bucket : histogram.getBuckets()) {
+            values.add(new Date(bucket.getKeyAsNumber().longValue()));
+        }
+        return values;
+    }
+
+    private String getField(String attribute) throws IOException {
+        final AttributeDescriptor descriptor = featureSource.getAggregationDescriptor(ff.property(attribute));
+        return descriptor != null ? getField(descriptor) : null;
+    }
+
+    private String getField(AttributeDescriptor descriptor) {
+        if (!Date.class.isAssignableFrom(descriptor.getType().getBinding())
+                || descriptor.getUserData().get(DATE_FORMAT) == null) {
+            return null;
+        }
+        return (String) descriptor.getUserData().get(FULL_NAME);
+    }
+
+}
@@ -43,6 +43,7 @@ import org.geotools.data.Query;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.factory.Hints;
 import org.geotools.filter.FilterCapabilities;
+import org.geotools.filter.visitor.PostPreProcessFilterSplittingVisitor;
 import org.geotools.geojson.geom.GeometryJSON;
 import org.geotools.util.ConverterFactory;
 import org.geotools.util.Converters;
@@ -153,6 +154,8 @@ public class FilterToElastic implements FilterVisitor, ExpressionVisitor {
     
     protected Boolean fullySupported;
 
+    protected Filter residualFilter;
+
     protected FilterToElasticHelper helper;
 
     private DateTimeFormatter dateFormatter;
@@ -162,6 +165,7 @@ public class FilterToElastic implements FilterVisitor, ExpressionVisitor {
         queryBuilder = QueryBuilders.matchAllQuery();
         helper = new FilterToElasticHelper(this);
         fullySupported = null;
+        residualFilter = Filter.INCLUDE;
     }
 
     /**
@@ -180,13 +184,26 @@ public class FilterToElastic implements FilterVisitor, ExpressionVisitor {
      * Performs the encoding and populates the {@link FilterBuilder}.
      * If SQL View parameters are provided in the query hints, they will be used
      * to define and/or update the {@link QueryBuilder} and {@link FilterBuilder}.
+     * <p>
+     * The query filter is split into a part supported by this encoder, which
+     * is encoded, and a residual part that must be evaluated on the returned
+     * features (see {@link #getResidualFilter()}).
+     * </p>
      *
      * @param query the Query to be encoded.
      *
      * @throws FilterToElasticException If there were io problems.
      */
     public void encode(Query query) throws FilterToElasticException {
-        encode(query.getFilter());
+        final PostPreProcessFilterSplittingVisitor splitter;
+        splitter = new PostPreProcessFilterSplittingVisitor(getCapabilities(), featureType, null);
+        query.getFilter().accept(splitter, null);
+        encode(splitter.getFilterPre());
+        residualFilter = splitter.getFilterPost();
+        if (residualFilter == null) {
+            residualFilter = Filter.INCLUDE;
+        }
+        fullySupported = residualFilter == Filter.INCLUDE;
         addViewParams(query);
     }
 
@@ -1255,5 +1272,13 @@ public class FilterToElastic implements FilterVisitor, ExpressionVisitor {
     public Boolean getFullySupported() {
         return fullySupported;
     }
+
+    /**
+     * Part of the query filter not supported by this encoder, or 
+     * {@link Filter#INCLUDE} if the filter is fully supported.
+     */
+    public Filter getResidualFilter() {
+        return residualFilter;
+    }
     
 }
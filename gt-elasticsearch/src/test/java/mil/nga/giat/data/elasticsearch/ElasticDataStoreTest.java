@@ -27,7 +27,9 @@ import java.util.Map;
 import mil.nga.giat.data.elasticsearch.ElasticDataStoreFactory;
 
 import org.geotools.data.DataStore;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeatureType;
 
 public class ElasticDataStoreTest extends ElasticTestSupport {
 
@@ -64,4 +66,81 @@ public class ElasticDataStoreTest extends ElasticTestSupport {
         assertTrue(layerConfig.getAttributes().equals(layerConfig2.getAttributes()));
     }
 
+    @Test
+    public void testReaderPlanShared() throws Exception {
+        init();
+        SimpleFeatureType featureType = featureSource.getSchema();
+        ElasticFeatureReaderPlan plan = dataStore.getReaderPlan(featureType);
+        assertSame(plan, dataStore.getReaderPlan(featureType));
+        assertSame(featureType, plan.getFeatureType());
+
+        SimpleFeatureType retyped = SimpleFeatureTypeBuilder.retype(featureType, new String[] {"id"});
+        ElasticFeatureReaderPlan retypedPlan = dataStore.getReaderPlan(retyped);
+        assertNotSame(plan, retypedPlan);
+        assertSame(retyped, retypedPlan.getFeatureType());
+    }
+
+    @Test
+    public void testReaderPlansBounded() throws Exception {
+        init();
+        SimpleFeatureType featureType = featureSource.getSchema();
+        ElasticFeatureReaderPlan plan = dataStore.getReaderPlan(featureType);
+        for (int i=0; i<ElasticDataStore.MAX_READER_PLANS; i++) {
+            SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+            typeBuilder.init(featureType);
+            typeBuilder.setName("plan" + i);
+            dataStore.getReaderPlan(typeBuilder.buildFeatureType());
+        }
+        assertNotSame(plan, dataStore.getReaderPlan(featureType));
+    }
+
+    @Test
+    public void testReaderPlansClearedOnLayerConfiguration() throws Exception {
+        init();
+        SimpleFeatureType featureType = featureSource.getSchema();
+        ElasticFeatureReaderPlan plan = dataStore.getReaderPlan(featureType);
+        dataStore.setLayerConfiguration(config);
+        assertNotSame(plan, dataStore.getReaderPlan(featureType));
+    }
+
+    @Test
+    public void testNumberOfShards() throws Exception {
+        init();
+        assertEquals(numShards, dataStore.getNumberOfShards());
+        // cached
+        assertEquals(numShards, dataStore.getNumberOfShards());
+    }
+
+    @Test
+    public void testScrollSizer() throws Exception {
+        init();
+        ElasticScrollSizer sizer = dataStore.getScrollSizer();
+        assertFalse(sizer.isEnabled());
+        assertEquals(dataStore.getScrollSize().intValue(), sizer.getSize("sizer").intValue());
+        sizer.update("sizer", 100, 1000, 10);
+        assertEquals(dataStore.getScrollSize().intValue(), sizer.getSize("sizer").intValue());
+
+        dataStore.setScrollPageBytes(4000l);
+        dataStore.setScrollPageMillis(100);
+        try {
+            assertTrue(sizer.isEnabled());
+            // small fast pages grow at most twofold
+            sizer.update("sizer", 100, 1000, 10);
+            assertEquals(200, sizer.getSize("sizer").intValue());
+            // pages over the byte bound shrink
+            sizer.update("sizer", 200, 5000, 10);
+            assertEquals(160, sizer.getSize("sizer").intValue());
+            // slow pages shrink at most by half
+            sizer.update("sizer", 160, 1000, 1000);
+            assertEquals(80, sizer.getSize("sizer").intValue());
+            sizer.update("sizer", 1, 100000, 10);
+            assertEquals(1, sizer.getSize("sizer").intValue());
+            sizer.update("sizer", ElasticScrollSizer.MAX_SIZE, 1, 1);
+            assertEquals(ElasticScrollSizer.MAX_SIZE, sizer.getSize("sizer").intValue());
+        } finally {
+            dataStore.setScrollPageBytes(0l);
+            dataStore.setScrollPageMillis(0);
+        }
+    }
+
 }
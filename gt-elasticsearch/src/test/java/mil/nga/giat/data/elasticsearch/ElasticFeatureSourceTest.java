@@ -19,17 +19,29 @@ package mil.nga.giat.data.elasticsearch;
 
 import static org.junit.Assert.*;
 
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 
+import org.elasticsearch.client.Client;
 import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.store.ContentEntry;
+import org.geotools.factory.Hints;
 import org.geotools.feature.NameImpl;
+import org.geotools.feature.visitor.CountVisitor;
+import org.geotools.feature.visitor.MaxVisitor;
+import org.geotools.feature.visitor.MinVisitor;
+import org.geotools.feature.visitor.SumVisitor;
+import org.geotools.feature.visitor.UniqueVisitor;
+import org.geotools.filter.function.RangedClassifier;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.junit.After;
 import org.junit.Test;
@@ -59,10 +71,21 @@ import org.opengis.filter.spatial.BBOX;
 
 public class ElasticFeatureSourceTest extends ElasticTestSupport {
 
+    private static final Long spoolMaxBytes = 67108864l;
+
     @After
     public void tearDown() {
         dataStore.setScrollEnabled(scrollEnabled);
         dataStore.setScrollSize(scrollSize);
+        dataStore.setScrollPrefetch(0);
+        dataStore.setParallelScan(0);
+        dataStore.setScrollPageBytes(0l);
+        dataStore.setScrollPageMillis(0);
+        dataStore.setKeysetPaging(false);
+        dataStore.setKeysetTime(60);
+        dataStore.getKeysetCache().clear();
+        dataStore.setSpoolMaxBytes(spoolMaxBytes);
+        dataStore.getSpoolCache().clear();
         dataStore.setLayerConfiguration(config);
     }
     
@@ -128,6 +151,165 @@ public class ElasticFeatureSourceTest extends ElasticTestSupport {
         assertEquals(44, Math.round(bounds.getMaxY()));
     }
 
+    @Test
+    public void testBoundsWithFilter() throws Exception {
+        init();
+        FilterFactory ff = dataStore.getFilterFactory();
+        PropertyIsEqualTo filter = ff.equals(ff.property("vendor_s"), ff.literal("D-Link"));
+        ReferencedEnvelope bounds = featureSource.getBounds(new Query(layerName, filter));
+        assertEquals(0l, Math.round(bounds.getMinX()));
+        assertEquals(0l, Math.round(bounds.getMinY()));
+        assertEquals(13, Math.round(bounds.getMaxX()));
+        assertEquals(23, Math.round(bounds.getMaxY()));
+    }
+
+    @Test
+    public void testBoundsWithGeoShapeDefaultGeometry() throws Exception {
+        init(layerName, "geo2");
+        ReferencedEnvelope bounds = featureSource.getBounds();
+        assertEquals(0l, Math.round(bounds.getMinX()));
+        assertEquals(0l, Math.round(bounds.getMinY()));
+        assertEquals(24, Math.round(bounds.getMaxX()));
+        assertEquals(44, Math.round(bounds.getMaxY()));
+    }
+
+    @Test
+    public void testBoundsAcrossAntimeridian() throws Exception {
+        init();
+        String antimeridianIndex = "antimeridian";
+        Client client = dataStore.getClient();
+        client.admin().indices().prepareCreate(antimeridianIndex)
+        .addMapping("points", "{\"points\":{\"properties\":{\"geo\":{\"type\":\"geo_point\"}}}}")
+        .execute().actionGet();
+        client.prepareIndex(antimeridianIndex, "points").setId("1").setSource("{\"geo\":\"10,179\"}")
+        .setRefresh(true).execute().actionGet();
+        client.prepareIndex(antimeridianIndex, "points").setId("2").setSource("{\"geo\":\"20,-179\"}")
+        .setRefresh(true).execute().actionGet();
+
+        Map<String,Serializable> params = createConnectionParams();
+        params.put(ElasticDataStoreFactory.INDEX_NAME.key, antimeridianIndex);
+        ElasticDataStore antimeridianStore = (ElasticDataStore) new ElasticDataStoreFactory().createDataStore(params);
+        try {
+            ElasticLayerConfiguration layerConfig = new ElasticLayerConfiguration("points");
+            for (ElasticAttribute attribute : antimeridianStore.getElasticAttributes(new NameImpl("points"))) {
+                attribute.setUse(true);
+                attribute.setDefaultGeometry(attribute.getName().equals("geo"));
+                layerConfig.getAttributes().add(attribute);
+            }
+            antimeridianStore.setLayerConfiguration(layerConfig);
+            ReferencedEnvelope bounds = antimeridianStore.getFeatureSource("points").getBounds();
+            assertEquals(-179, Math.round(bounds.getMinX()));
+            assertEquals(10, Math.round(bounds.getMinY()));
+            assertEquals(179, Math.round(bounds.getMaxX()));
+            assertEquals(20, Math.round(bounds.getMaxY()));
+        } finally {
+            antimeridianStore.dispose();
+            client.admin().indices().prepareDelete(antimeridianIndex).execute().actionGet();
+        }
+    }
+
+    @Test
+    public void testUniqueVisitor() throws Exception {
+        init();
+        FilterFactory ff = dataStore.getFilterFactory();
+        UniqueVisitor visitor = new UniqueVisitor(ff.property("vendor_s"));
+        featureSource.getFeatures(Query.ALL).accepts(visitor, null);
+        assertEquals(new HashSet<>(Arrays.asList("D-Link", "Linksys", "Cisco", "TP-Link", "HP", "Asus")), 
+                visitor.getUnique());
+    }
+
+    @Test
+    public void testUniqueVisitorWithFilter() throws Exception {
+        init();
+        FilterFactory ff = dataStore.getFilterFactory();
+        PropertyIsEqualTo filter = ff.equals(ff.property("modem_b"), ff.literal(false));
+        UniqueVisitor visitor = new UniqueVisitor(ff.property("vendor_s"));
+        featureSource.getFeatures(filter).accepts(visitor, null);
+        assertEquals(new HashSet<>(Arrays.asList("Cisco", "D-Link", "TP-Link")), visitor.getUnique());
+    }
+
+    @Test
+    public void testMinMaxVisitors() throws Exception {
+        init();
+        FilterFactory ff = dataStore.getFilterFactory();
+        MinVisitor minVisitor = new MinVisitor(ff.property("speed_is"));
+        MaxVisitor maxVisitor = new MaxVisitor(ff.property("speed_is"));
+        featureSource.getFeatures(Query.ALL).accepts(minVisitor, null);
+        featureSource.getFeatures(Query.ALL).accepts(maxVisitor, null);
+        assertEquals(150, minVisitor.getResult().toInt());
+        assertEquals(300, maxVisitor.getResult().toInt());
+    }
+
+    @Test
+    public void testSumAndCountVisitors() throws Exception {
+        init();
+        FilterFactory ff = dataStore.getFilterFactory();
+        SumVisitor sumVisitor = new SumVisitor(ff.property("speed_is"));
+        CountVisitor countVisitor = new CountVisitor();
+        featureSource.getFeatures(Query.ALL).accepts(sumVisitor, null);
+        featureSource.getFeatures(Query.ALL).accepts(countVisitor, null);
+        assertEquals(2850, sumVisitor.getResult().toInt());
+        assertEquals(11, countVisitor.getResult().toInt());
+    }
+
+    @Test
+    public void testEqualIntervalClassifier() throws Exception {
+        init();
+        RangedClassifier classifier = new ElasticClassifier(featureSource).equalInterval(Query.ALL, "speed_is", 2);
+        assertEquals(2, classifier.getSize());
+        assertEquals(150, ((Number) classifier.getMin(0)).intValue());
+        assertEquals(225, ((Number) classifier.getMax(0)).intValue());
+        assertEquals(300, ((Number) classifier.getMax(1)).intValue());
+    }
+
+    @Test
+    public void testQuantileClassifier() throws Exception {
+        init();
+        RangedClassifier classifier = new ElasticClassifier(featureSource).quantile(Query.ALL, "speed_is", 2);
+        assertEquals(2, classifier.getSize());
+        assertEquals(150, ((Number) classifier.getMin(0)).intValue());
+        assertEquals(150, ((Number) classifier.getMax(0)).intValue());
+        assertEquals(300, ((Number) classifier.getMax(1)).intValue());
+    }
+
+    @Test
+    public void testJenksClassifier() throws Exception {
+        init();
+        RangedClassifier classifier = new ElasticClassifier(featureSource).jenks(Query.ALL, "speed_is", 2);
+        assertEquals(2, classifier.getSize());
+        assertEquals(0, classifier.classify(150));
+        assertEquals(1, classifier.classify(300));
+    }
+
+    @Test
+    public void testSingleClassClassifier() throws Exception {
+        init();
+        RangedClassifier classifier = new ElasticClassifier(featureSource).quantile(Query.ALL, "speed_is", 1);
+        assertEquals(1, classifier.getSize());
+        assertEquals(150, ((Number) classifier.getMin(0)).intValue());
+        assertEquals(300, ((Number) classifier.getMax(0)).intValue());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testClassifierWithoutClasses() throws Exception {
+        init();
+        new ElasticClassifier(featureSource).jenks(Query.ALL, "speed_is", 0);
+    }
+
+    @Test
+    public void testClassifierWithUnsupportedAttribute() throws Exception {
+        init();
+        assertNull(new ElasticClassifier(featureSource).quantile(Query.ALL, "vendor_s", 2));
+    }
+
+    @Test
+    public void testJenksBreaks() {
+        List<Double> values = Arrays.asList(1.0, 2.0, 3.0, 10.0, 11.0, 20.0);
+        List<Double> weights = Arrays.asList(1.0, 1.0, 1.0, 1.0, 1.0, 1.0);
+        int[] starts = ElasticClassifier.jenksBreaks(values, weights, 3);
+        assertArrayEquals(new int[] {0, 3, 5}, starts);
+    }
+
     @Test
     public void testCountWithIsEqualFilter() throws Exception {
         init();
@@ -148,6 +330,19 @@ public class ElasticFeatureSourceTest extends ElasticTestSupport {
         assertEquals(7, featureSource.getCount(query));
     }
 
+    @Test
+    public void testCountWithPartiallySupportedFilter() throws Exception {
+        init();
+        FilterFactory ff = dataStore.getFilterFactory();
+        PropertyIsEqualTo supported = ff.equals(ff.property("modem_b"), ff.literal(true));
+        PropertyIsEqualTo unsupported = ff.equals(ff.function("strToUpperCase", ff.property("vendor_s")), 
+                ff.literal("D-LINK"));
+        Query query = new Query();
+        query.setFilter(ff.and(supported, unsupported));
+        assertEquals(3, featureSource.getCount(query));
+        assertEquals(3, featureSource.getFeatures(query).size());
+    }
+
     @Test
     public void testCountWithOffsetLimit() throws Exception {
         init();
@@ -287,6 +482,106 @@ public class ElasticFeatureSourceTest extends ElasticTestSupport {
         }
     }
 
+    @Test
+    public void testGetFeaturesWithGroup() throws Exception {
+        init();
+        config.setGroupBy("vendor_s");
+        config.setGroupSort("id");
+
+        List<SimpleFeature> features = readFeatures(featureSource.getFeatures().features());
+        assertEquals(6, features.size());
+        assertEquals(layerName + ".11", features.get(0).getID());
+        assertEquals(layerName + ".05", features.get(1).getID());
+        assertEquals(layerName + ".09", features.get(2).getID());
+        assertEquals(layerName + ".10", features.get(3).getID());
+        assertEquals(layerName + ".08", features.get(4).getID());
+        assertEquals(layerName + ".07", features.get(5).getID());
+    }
+
+    @Test
+    public void testGetFeaturesWithGroupAndFilter() throws Exception {
+        init();
+        config.setGroupBy("vendor_s");
+        config.setGroupSort("id");
+        FilterFactory ff = dataStore.getFilterFactory();
+        PropertyIsEqualTo filter = ff.equals(ff.property("modem_b"), ff.literal(true));
+
+        List<SimpleFeature> features = readFeatures(featureSource.getFeatures(filter).features());
+        assertEquals(5, features.size());
+        assertEquals(layerName + ".09", features.get(2).getID());
+        assertEquals("D-Link", features.get(2).getAttribute("vendor_s"));
+    }
+
+    @Test
+    public void testGetFeaturesWithGroupSortAndPaging() throws Exception {
+        init();
+        config.setGroupBy("vendor_s");
+        config.setGroupSort("id");
+        FilterFactory ff = dataStore.getFilterFactory();
+        Query query = new Query();
+        query.setSortBy(new SortBy[] {ff.sort("id", SortOrder.DESCENDING)});
+        query.setStartIndex(1);
+        query.setMaxFeatures(3);
+
+        List<SimpleFeature> features = readFeatures(featureSource.getFeatures(query).features());
+        assertEquals(3, features.size());
+        assertEquals(layerName + ".10", features.get(0).getID());
+        assertEquals(layerName + ".09", features.get(1).getID());
+        assertEquals(layerName + ".08", features.get(2).getID());
+    }
+
+    @Test
+    public void testGetFeaturesWithGroupSortOnUnrequestedProperty() throws Exception {
+        init();
+        config.setGroupBy("vendor_s");
+        config.setGroupSort("id");
+        FilterFactory ff = dataStore.getFilterFactory();
+        Query query = new Query();
+        query.setPropertyNames(new String[] {"vendor_s"});
+        query.setSortBy(new SortBy[] {ff.sort("id", SortOrder.DESCENDING)});
+
+        List<SimpleFeature> features = readFeatures(featureSource.getFeatures(query).features());
+        assertEquals(6, features.size());
+        assertEquals(1, features.get(0).getAttributeCount());
+        String[] ids = {"11", "10", "09", "08", "07", "05"};
+        String[] vendors = {"Asus", "HP", "D-Link", "Linksys", "TP-Link", "Cisco"};
+        for (int i=0; i<features.size(); i++) {
+            assertEquals(layerName + "." + ids[i], features.get(i).getID());
+            assertEquals(vendors[i], features.get(i).getAttribute("vendor_s"));
+        }
+    }
+
+    @Test
+    public void testGetFeaturesWithSampleBudget() throws Exception {
+        init();
+        dataStore.setSampleBudget(5);
+
+        assertEquals(5, featureSource.getCount(Query.ALL));
+        List<SimpleFeature> features = readFeatures(featureSource.getFeatures().features());
+        assertEquals(5, features.size());
+        assertEquals(5/11., (Double) features.get(0).getUserData().get(ElasticFeatureReader.SAMPLE_RATIO), 1e-9);
+
+        // sample is stable across requests
+        List<SimpleFeature> repeated = readFeatures(featureSource.getFeatures().features());
+        for (int i=0; i<features.size(); i++) {
+            assertEquals(features.get(i).getID(), repeated.get(i).getID());
+        }
+    }
+
+    @Test
+    public void testGetFeaturesWithinSampleBudget() throws Exception {
+        init();
+        dataStore.setSampleBudget(20);
+
+        List<SimpleFeature> features = readFeatures(featureSource.getFeatures().features());
+        assertEquals(11, features.size());
+        assertNull(features.get(0).getUserData().get(ElasticFeatureReader.SAMPLE_RATIO));
+        // query scores are kept
+        for (SimpleFeature feature : features) {
+            assertEquals(1f, (Float) feature.getAttribute("_score"), 1e-6);
+        }
+    }
+
     @Test
     public void testGetFeaturesWithSort() throws Exception {
         init();
@@ -491,6 +786,32 @@ public class ElasticFeatureSourceTest extends ElasticTestSupport {
         }
     }
 
+    @Test
+    public void testDocValueFields() throws Exception {
+        init();
+        FilterFactory ff = dataStore.getFilterFactory();
+        Query query = new Query();
+        query.setSortBy(new SortBy[] { ff.sort("id", SortOrder.ASCENDING) });
+        List<SimpleFeature> expected = readFeatures(featureSource.getFeatures(query).features());
+
+        Name name = new NameImpl("active");
+        for (final ElasticAttribute attribute : dataStore.getElasticAttributes(name) ){
+            if (attribute.getName().equals("speed_is") || attribute.getName().equals("installed_td")) {
+                assertTrue(attribute.isDocValuesEligible());
+                attribute.setDocValues(true);
+            } else if (attribute.getName().equals("geo")) {
+                assertFalse(attribute.isDocValuesEligible());
+            }
+        }
+        List<SimpleFeature> features = readFeatures(featureSource.getFeatures(query).features());
+        assertEquals(expected.size(), features.size());
+        for (int i=0; i<features.size(); i++) {
+            assertEquals(expected.get(i).getAttribute("speed_is"), features.get(i).getAttribute("speed_is"));
+            assertEquals(expected.get(i).getAttribute("installed_td"), features.get(i).getAttribute("installed_td"));
+            assertEquals(expected.get(i).getAttribute("vendor_s"), features.get(i).getAttribute("vendor_s"));
+        }
+    }
+
     @Test
     public void testGetFeaturesWithIsGreaterThanFilterOnObjectType() throws Exception {
         init();
@@ -594,6 +915,400 @@ public class ElasticFeatureSourceTest extends ElasticTestSupport {
         it.next();
     }      
 
+    @Test
+    public void testScrollPrefetch() throws Exception {
+        init();
+        dataStore.setScrollEnabled(true);
+        dataStore.setScrollSize(2l);
+        List<SimpleFeature> expected = readFeatures(featureSource.getFeatures().features());
+        dataStore.setScrollPrefetch(2);
+        List<SimpleFeature> features = readFeatures(featureSource.getFeatures().features());
+        assertEquals(11, features.size());
+        assertEquals(expected.size(), features.size());
+        Set<String> expectedIds = new HashSet<String>();
+        for (SimpleFeature feature : expected) {
+            expectedIds.add(feature.getID());
+        }
+        for (SimpleFeature feature : features) {
+            assertTrue(expectedIds.contains(feature.getID()));
+        }
+    }
+
+    @Test
+    public void testScrollPrefetchHonorsMaxFeatures() throws Exception {
+        init();
+        dataStore.setScrollEnabled(true);
+        dataStore.setScrollSize(1l);
+        dataStore.setScrollPrefetch(3);
+        Query q = new Query();
+        q.setMaxFeatures(7);
+        List<SimpleFeature> features = readFeatures(featureSource.getFeatures(q).features());
+        assertEquals(7, features.size());
+    }
+
+    @Test
+    public void testScrollPrefetchClosedEarly() throws Exception {
+        init();
+        dataStore.setScrollEnabled(true);
+        dataStore.setScrollSize(1l);
+        dataStore.setScrollPrefetch(3);
+        SimpleFeatureIterator it = featureSource.getFeatures().features();
+        assertTrue(it.hasNext());
+        assertNotNull(it.next());
+        it.close();
+        assertEquals(11, readFeatures(featureSource.getFeatures().features()).size());
+    }
+
+    @Test
+    public void testSortedScrollPrefetch() throws Exception {
+        init();
+        FilterFactory ff = dataStore.getFilterFactory();
+        Query query = new Query();
+        query.setSortBy(new SortBy[] { ff.sort("id", SortOrder.ASCENDING) });
+        query.setMaxFeatures(4);
+        dataStore.setScrollEnabled(true);
+        dataStore.setScrollSize(2l);
+        dataStore.setScrollPrefetch(2);
+        ElasticScrollRegistry registry = dataStore.getScrollRegistry();
+        int openCount = registry.getOpenCount();
+        List<SimpleFeature> features = readFeatures(featureSource.getFeatures(query).features());
+        assertEquals(4, features.size());
+        assertEquals(layerName + ".01", features.get(0).getID());
+        assertEquals(layerName + ".04", features.get(3).getID());
+        assertEquals(openCount, registry.getOpenCount());
+    }
+
+    @Test
+    public void testAdaptiveScrollSize() throws Exception {
+        init();
+        dataStore.setScrollEnabled(true);
+        dataStore.setScrollSize(1l);
+        dataStore.setScrollPageBytes(1000000l);
+        ElasticScrollSizer sizer = dataStore.getScrollSizer();
+        assertEquals(1, sizer.getSize(layerName).intValue());
+        assertEquals(11, readFeatures(featureSource.getFeatures().features()).size());
+        assertTrue(sizer.getSize(layerName) > 1);
+        assertEquals(11, readFeatures(featureSource.getFeatures().features()).size());
+    }
+
+    @Test
+    public void testSortedScroll() throws Exception {
+        init();
+        FilterFactory ff = dataStore.getFilterFactory();
+        Query query = new Query();
+        query.setSortBy(new SortBy[] { ff.sort("vendor_s", SortOrder.DESCENDING), 
+                ff.sort("id", SortOrder.ASCENDING) });
+        List<SimpleFeature> expected = readFeatures(featureSource.getFeatures(query).features());
+
+        dataStore.setScrollEnabled(true);
+        dataStore.setScrollSize(2l);
+        ElasticScrollRegistry registry = dataStore.getScrollRegistry();
+        int openCount = registry.getOpenCount();
+        List<SimpleFeature> features = readFeatures(featureSource.getFeatures(query).features());
+        assertEquals(11, features.size());
+        assertEquals(features.size(), featureSource.getCount(query));
+        for (int i=0; i<features.size(); i++) {
+            assertEquals(expected.get(i).getID(), features.get(i).getID());
+        }
+        assertEquals("TP-Link", features.get(0).getAttribute("vendor_s"));
+        assertEquals(openCount, registry.getOpenCount());
+
+        query.setMaxFeatures(5);
+        features = readFeatures(featureSource.getFeatures(query).features());
+        assertEquals(5, features.size());
+        assertEquals(features.size(), featureSource.getCount(query));
+        for (int i=0; i<features.size(); i++) {
+            assertEquals(expected.get(i).getID(), features.get(i).getID());
+        }
+    }
+
+    @Test
+    public void testKeysetPaging() throws Exception {
+        init();
+        FilterFactory ff = dataStore.getFilterFactory();
+        Query query = new Query();
+        query.setSortBy(new SortBy[] { ff.sort("id", SortOrder.DESCENDING) });
+        List<SimpleFeature> expected = readFeatures(featureSource.getFeatures(query).features());
+        assertEquals(11, expected.size());
+
+        dataStore.setKeysetPaging(true);
+        query.setMaxFeatures(3);
+        List<SimpleFeature> features = new ArrayList<>();
+        for (int startIndex=0; startIndex<expected.size(); startIndex+=3) {
+            query.setStartIndex(startIndex);
+            features.addAll(readFeatures(featureSource.getFeatures(query).features()));
+        }
+        assertEquals(expected.size(), features.size());
+        for (int i=0; i<features.size(); i++) {
+            assertEquals(expected.get(i).getID(), features.get(i).getID());
+        }
+
+        // seek from the closest page boundary
+        query.setStartIndex(4);
+        features = readFeatures(featureSource.getFeatures(query).features());
+        assertEquals(3, features.size());
+        for (int i=0; i<features.size(); i++) {
+            assertEquals(expected.get(4+i).getID(), features.get(i).getID());
+        }
+    }
+
+    @Test
+    public void testKeysetPagingWithMissingSortValues() throws Exception {
+        init();
+        FilterFactory ff = dataStore.getFilterFactory();
+        for (SortOrder sortOrder : SortOrder.values()) {
+            // 10 and 11 have no installed_tdt, sorted last
+            Query query = new Query();
+            query.setSortBy(new SortBy[] { ff.sort("installed_tdt", sortOrder), 
+                    ff.sort("id", SortOrder.ASCENDING) });
+            dataStore.setKeysetPaging(false);
+            List<SimpleFeature> expected = readFeatures(featureSource.getFeatures(query).features());
+            assertEquals(11, expected.size());
+
+            dataStore.setKeysetPaging(true);
+            query.setMaxFeatures(2);
+            List<SimpleFeature> features = new ArrayList<>();
+            for (int startIndex=0; startIndex<expected.size(); startIndex+=2) {
+                query.setStartIndex(startIndex);
+                features.addAll(readFeatures(featureSource.getFeatures(query).features()));
+            }
+            assertEquals(expected.size(), features.size());
+            for (int i=0; i<features.size(); i++) {
+                assertEquals(expected.get(i).getID(), features.get(i).getID());
+            }
+            assertNull(features.get(9).getAttribute("installed_tdt"));
+            assertNull(features.get(10).getAttribute("installed_tdt"));
+        }
+    }
+
+    @Test
+    public void testKeysetCacheExpiry() throws Exception {
+        init();
+        ElasticKeysetCache keysetCache = dataStore.getKeysetCache();
+        keysetCache.put("query", 3, new Object[] { "09" });
+        assertEquals(3, (int) keysetCache.get("query", 5).getKey());
+        dataStore.setKeysetTime(0);
+        Thread.sleep(10);
+        assertNull(keysetCache.get("query", 5));
+    }
+
+    @Test
+    public void testSpool() throws Exception {
+        init();
+        Query query = getSpoolQuery("request1");
+        List<SimpleFeature> features = readFeatures(featureSource.getFeatures(query).features());
+        assertEquals(11, features.size());
+        assertTrue(features.get(0) instanceof ElasticFeature);
+        ReferencedEnvelope bounds = new ReferencedEnvelope(featureSource.getSchema().getCoordinateReferenceSystem());
+        for (SimpleFeature feature : features) {
+            bounds.include(feature.getBounds());
+        }
+
+        // further passes are read from the spool
+        List<SimpleFeature> spooled = readFeatures(featureSource.getFeatures(query).features());
+        assertEquals(features.size(), spooled.size());
+        for (int i=0; i<spooled.size(); i++) {
+            assertFalse(spooled.get(i) instanceof ElasticFeature);
+            assertEquals(features.get(i).getID(), spooled.get(i).getID());
+            assertEquals(features.get(i).getAttributes(), spooled.get(i).getAttributes());
+        }
+        assertEquals(11, featureSource.getCount(query));
+        assertEquals(bounds, featureSource.getBounds(query));
+
+        query.setPropertyNames(new String[] {"vendor_s"});
+        spooled = readFeatures(featureSource.getFeatures(query).features());
+        assertEquals(11, spooled.size());
+        assertEquals(1, spooled.get(0).getAttributeCount());
+        assertFalse(spooled.get(0) instanceof ElasticFeature);
+    }
+
+    @Test
+    public void testSpoolOverMaxBytes() throws Exception {
+        init();
+        dataStore.setSpoolMaxBytes(100l);
+        Query query = getSpoolQuery("request1");
+        assertEquals(11, readFeatures(featureSource.getFeatures(query).features()).size());
+        List<SimpleFeature> features = readFeatures(featureSource.getFeatures(query).features());
+        assertEquals(11, features.size());
+        assertTrue(features.get(0) instanceof ElasticFeature);
+    }
+
+    @Test
+    public void testSpoolPerRequest() throws Exception {
+        init();
+        assertEquals(11, readFeatures(featureSource.getFeatures(getSpoolQuery("request1")).features()).size());
+        List<SimpleFeature> features = readFeatures(featureSource.getFeatures(getSpoolQuery("request2")).features());
+        assertEquals(11, features.size());
+        assertTrue(features.get(0) instanceof ElasticFeature);
+
+        // not identifying a request
+        Query query = getSpoolQuery("true");
+        assertEquals(11, readFeatures(featureSource.getFeatures(query).features()).size());
+        features = readFeatures(featureSource.getFeatures(query).features());
+        assertTrue(features.get(0) instanceof ElasticFeature);
+    }
+
+    @Test
+    public void testSpoolWithGeometryDistance() throws Exception {
+        init();
+        Query query = getSpoolQuery("request1");
+        query.getHints().put(Hints.GEOMETRY_DISTANCE, 1.0);
+        assertEquals(11, readFeatures(featureSource.getFeatures(query).features()).size());
+        List<SimpleFeature> features = readFeatures(featureSource.getFeatures(query).features());
+        assertEquals(11, features.size());
+        assertTrue(features.get(0) instanceof ElasticFeature);
+
+        // not served to passes without generalization
+        features = readFeatures(featureSource.getFeatures(getSpoolQuery("request1")).features());
+        assertTrue(features.get(0) instanceof ElasticFeature);
+    }
+
+    private Query getSpoolQuery(String request) {
+        Map<String, String> vparams = new HashMap<String, String>();
+        vparams.put(ElasticSpool.SPOOL_PARAMETER, request);
+        Hints hints = new Hints(Hints.VIRTUAL_TABLE_PARAMETERS, vparams);
+        hints.put(ElasticFeatureSource.LAZY_FEATURES, true);
+        Query query = new Query();
+        query.setHints(hints);
+        return query;
+    }
+
+    @Test
+    public void testScrollClearedWhenExhausted() throws Exception {
+        init();
+        dataStore.setScrollEnabled(true);
+        dataStore.setScrollSize(2l);
+        ElasticScrollRegistry registry = dataStore.getScrollRegistry();
+        int openCount = registry.getOpenCount();
+        long clearedCount = registry.getClearedCount();
+        assertEquals(11, readFeatures(featureSource.getFeatures().features()).size());
+        assertEquals(openCount, registry.getOpenCount());
+        assertEquals(clearedCount + 1, registry.getClearedCount());
+    }
+
+    @Test
+    public void testSmallResultsReadInSinglePage() throws Exception {
+        init();
+        dataStore.setScrollEnabled(true);
+        dataStore.setScrollSize(20l);
+        ElasticScrollRegistry registry = dataStore.getScrollRegistry();
+        long clearedCount = registry.getClearedCount();
+        assertEquals(11, readFeatures(featureSource.getFeatures().features()).size());
+        assertEquals(clearedCount, registry.getClearedCount());
+    }
+
+    @Test
+    public void testSinglePageWithoutScroll() throws Exception {
+        init();
+        dataStore.setScrollEnabled(false);
+        dataStore.setScrollSize(2l);
+        ElasticScrollRegistry registry = dataStore.getScrollRegistry();
+        long clearedCount = registry.getClearedCount();
+        assertEquals(11, readFeatures(featureSource.getFeatures().features()).size());
+        assertEquals(11, featureSource.getCount(Query.ALL));
+        assertEquals(clearedCount, registry.getClearedCount());
+    }
+
+    @Test
+    public void testScrollClearedOnClose() throws Exception {
+        init();
+        dataStore.setScrollEnabled(true);
+        dataStore.setScrollSize(1l);
+        ElasticScrollRegistry registry = dataStore.getScrollRegistry();
+        int openCount = registry.getOpenCount();
+        SimpleFeatureIterator it = featureSource.getFeatures().features();
+        assertTrue(it.hasNext());
+        it.next();
+        assertEquals(openCount + 1, registry.getOpenCount());
+        it.close();
+        assertEquals(openCount, registry.getOpenCount());
+    }
+
+    @Test
+    public void testParallelScan() throws Exception {
+        init();
+        dataStore.setScrollEnabled(true);
+        dataStore.setScrollSize(1l);
+        List<SimpleFeature> expected = readFeatures(featureSource.getFeatures().features());
+        dataStore.setParallelScan(2);
+        ElasticScrollRegistry registry = dataStore.getScrollRegistry();
+        int openCount = registry.getOpenCount();
+        List<SimpleFeature> features = readFeatures(featureSource.getFeatures().features());
+        assertEquals(11, features.size());
+        Set<String> ids = new HashSet<String>();
+        for (SimpleFeature feature : features) {
+            ids.add(feature.getID());
+        }
+        assertEquals(expected.size(), ids.size());
+        for (SimpleFeature feature : expected) {
+            assertTrue(ids.contains(feature.getID()));
+        }
+        assertEquals(openCount, registry.getOpenCount());
+    }
+
+    @Test
+    public void testParallelScanHonorsMaxFeatures() throws Exception {
+        init();
+        dataStore.setScrollEnabled(true);
+        dataStore.setScrollSize(1l);
+        dataStore.setParallelScan(3);
+        Query q = new Query();
+        q.setMaxFeatures(7);
+        List<SimpleFeature> features = readFeatures(featureSource.getFeatures(q).features());
+        assertEquals(7, features.size());
+    }
+
+    @Test
+    public void testLazyFeatures() throws Exception {
+        init();
+        FilterFactory ff = dataStore.getFilterFactory();
+        Query query = new Query();
+        query.setSortBy(new SortBy[] { ff.sort("id", SortOrder.ASCENDING) });
+        List<SimpleFeature> expected = readFeatures(featureSource.getFeatures(query).features());
+
+        query.setHints(new Hints(ElasticFeatureSource.LAZY_FEATURES, true));
+        List<SimpleFeature> features = readFeatures(featureSource.getFeatures(query).features());
+        assertEquals(expected.size(), features.size());
+        for (int i=0; i<features.size(); i++) {
+            SimpleFeature feature = features.get(i);
+            assertTrue(feature instanceof ElasticFeature);
+            assertEquals(expected.get(i).getID(), feature.getID());
+            assertEquals(expected.get(i).getAttribute("vendor_s"), feature.getAttribute("vendor_s"));
+            assertEquals(expected.get(i).getAttributes(), feature.getAttributes());
+            assertEquals(expected.get(i).getBounds(), feature.getBounds());
+        }
+    }
+
+    @Test
+    public void testGetFeaturesWithPropertyNames() throws Exception {
+        init();
+        Query query = new Query(layerName, Filter.INCLUDE, new String[] {"vendor_s", "geo"});
+        SimpleFeatureCollection features = featureSource.getFeatures(query);
+        assertEquals(2, features.getSchema().getAttributeCount());
+        List<SimpleFeature> list = readFeatures(features.features());
+        assertEquals(11, list.size());
+        for (SimpleFeature feature : list) {
+            assertEquals(2, feature.getAttributeCount());
+            assertNotNull(feature.getAttribute("vendor_s"));
+            assertNull(feature.getFeatureType().getDescriptor("modem_b"));
+        }
+    }
+
+    @Test
+    public void testGetFeaturesWithPropertyNamesAndResidualFilter() throws Exception {
+        init();
+        FilterFactory ff = dataStore.getFilterFactory();
+        PropertyIsEqualTo filter = ff.equals(ff.function("strToUpperCase", ff.property("vendor_s")),
+                ff.literal("D-LINK"));
+        Query query = new Query(layerName, filter, new String[] {"id"});
+        List<SimpleFeature> features = readFeatures(featureSource.getFeatures(query).features());
+        assertEquals(4, features.size());
+        for (SimpleFeature feature : features) {
+            assertEquals(1, feature.getAttributeCount());
+            assertNotNull(feature.getAttribute("id"));
+        }
+    }
+
     void assertCovered(SimpleFeatureCollection features, Integer... ids) {
         assertEquals(ids.length, features.size());
 
@@ -12,12 +12,15 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 
 import mil.nga.giat.data.elasticsearch.ElasticParserUtil;
 
 import org.elasticsearch.common.geo.GeoHashUtils;
+import org.elasticsearch.common.geo.GeoPoint;
+import org.elasticsearch.common.xcontent.XContentFactory;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -34,6 +37,7 @@ import com.vividsolutions.jts.geom.MultiPoint;
 import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequence;
 
 public class ElasticParserUtilTest {
 
@@ -80,6 +84,46 @@ public class ElasticParserUtilTest {
         assertTrue(geom.equals(geometryFactory.createPoint(new Coordinate(90,45))));
     }
     
+    @Test
+    public void testGeoPointPatternForTrailingDecimalPoints() {
+        final Geometry geom = parserUtil.createGeometry("-45.,90.");
+        assertTrue(geom.equals(geometryFactory.createPoint(new Coordinate(90,-45))));
+    }
+
+    @Test
+    public void testGeoPointPatternForLongFractions() {
+        final String lat = "12.345678901234567890123";
+        final String lon = "-0.000000000000000000000001234";
+        final Geometry geom = parserUtil.createGeometry(lat + "," + lon);
+        final Coordinate expected = new Coordinate(Double.parseDouble(lon), Double.parseDouble(lat));
+        assertTrue(geom.equals(geometryFactory.createPoint(expected)));
+    }
+
+    @Test
+    public void testGeoPointPatternMatchesDoubleParsing() {
+        for (int i=0; i<1000; i++) {
+            final double lat = rand.nextDouble()*180-90;
+            final double lon = rand.nextDouble()*360-180;
+            final String latString = String.format(Locale.ROOT, "%." + rand.nextInt(18) + "f", lat);
+            final String lonString = String.format(Locale.ROOT, "%." + rand.nextInt(18) + "f", lon);
+            final Geometry geom = parserUtil.createGeometry(latString + "," + lonString);
+            final Coordinate expected = new Coordinate(Double.valueOf(lonString), Double.valueOf(latString));
+            assertTrue(geom.equals(geometryFactory.createPoint(expected)));
+        }
+    }
+
+    @Test
+    public void testInvalidGeoPointPattern() {
+        assertNull(parserUtil.createGeometry(","));
+        assertNull(parserUtil.createGeometry("45,"));
+        assertNull(parserUtil.createGeometry("-,90"));
+        assertNull(parserUtil.createGeometry("4..5,90"));
+        assertNull(parserUtil.createGeometry("--45,90"));
+        assertNull(parserUtil.createGeometry("45, 90"));
+        assertNull(parserUtil.createGeometry("45,90,0"));
+        assertNull(parserUtil.createGeometry("4e1,90"));
+    }
+
     @Test
     public void testGeoPointAsProperties() {
         final double lat = rand.nextDouble()*90-90;
@@ -150,6 +194,32 @@ public class ElasticParserUtilTest {
         assertTrue(parserUtil.createGeometry(geohash).equals(expected));
     }
     
+    @Test
+    public void testShortGeoHash() {
+        for (final String geohash : new String[] {"", "9", "u4pruydqqvj", "zzzzzz"}) {
+            final GeoPoint point = GeoHashUtils.decode(geohash);
+            final Geometry expected = geometryFactory.createPoint(new Coordinate(point.lon(),point.lat()));
+            assertTrue(parserUtil.createGeometry(geohash).equals(expected));
+        }
+    }
+
+    @Test
+    public void testInvalidGeoHash() {
+        assertNull(parserUtil.createGeometry("u4pruyda"));
+        assertNull(parserUtil.createGeometry("U4PRUYD"));
+    }
+
+    @Test
+    public void testGeoPointAsExponentStringArray() {
+        final Geometry geometry = parserUtil.createGeometry(Arrays.asList(new String[] {"1.5e1"," -2.5 "}));
+        assertTrue(geometry.equals(geometryFactory.createPoint(new Coordinate(15,-2.5))));
+    }
+
+    @Test(expected=NumberFormatException.class)
+    public void testGeoPointAsInvalidStringArray() {
+        parserUtil.createGeometry(Arrays.asList(new String[] {"a","b"}));
+    }
+
     @Test
     public void testUnrecognizedStringGeometry() {
         final Geometry geom = parserUtil.createGeometry("3.0");
@@ -218,6 +288,73 @@ public class ElasticParserUtilTest {
         assertTrue(parserUtil.createGeometry(rgb.toMap(envelope)).equalsExact(expected, 1e-9));
     }
     
+    @Test
+    public void testPackedGeoShapeLineString() throws JsonParseException, JsonMappingException, IOException {
+        parserUtil = new ElasticParserUtil(true);
+        LineString geom = rgb.createRandomLineString();
+        LineString actual = (LineString) parserUtil.createGeometry(rgb.toMap(geom));
+        assertTrue(actual.getCoordinateSequence() instanceof PackedCoordinateSequence.Double);
+        assertTrue(actual.equalsExact(geom, 1e-9));
+    }
+
+    @Test
+    public void testPackedGeoShapePolygon() throws JsonParseException, JsonMappingException, IOException {
+        parserUtil = new ElasticParserUtil(true);
+        Polygon geom = rgb.createRandomPolygon();
+        Polygon actual = (Polygon) parserUtil.createGeometry(rgb.toMap(geom));
+        assertTrue(actual.getExteriorRing().getCoordinateSequence() instanceof PackedCoordinateSequence.Double);
+        assertTrue(actual.equalsExact(geom, 1e-9));
+    }
+
+    @Test
+    public void testPackedGeoShapeMultiPolygon() throws JsonParseException, JsonMappingException, IOException {
+        parserUtil = new ElasticParserUtil(true);
+        MultiPolygon geom = rgb.createRandomMultiPolygon();
+        assertTrue(parserUtil.createGeometry(rgb.toMap(geom)).equalsExact(geom, 1e-9));
+    }
+
+    @Test
+    public void testPackedGeoShapeGeometryCollection() throws JsonParseException, JsonMappingException, IOException {
+        parserUtil = new ElasticParserUtil(true);
+        rgb.setNumGeometries(5);
+        GeometryCollection geom = rgb.createRandomGeometryCollection();
+        assertTrue(parserUtil.createGeometry(rgb.toMap(geom)).equalsExact(geom, 1e-9));
+    }
+
+    @Test
+    public void testSimplifiedGeoShapeLineString() {
+        parserUtil.setSimplificationDistance(0.5);
+        final Map<String,Object> map = new HashMap<>();
+        map.put("type", "LineString");
+        map.put("coordinates", Arrays.asList(Arrays.asList(0.0,0.0), Arrays.asList(0.1,0.1), 
+                Arrays.asList(0.2,0.0), Arrays.asList(1.0,1.0), Arrays.asList(1.1,1.0)));
+        final LineString expected = geometryFactory.createLineString(new Coordinate[] {
+                new Coordinate(0,0), new Coordinate(1,1), new Coordinate(1.1,1)});
+        assertTrue(parserUtil.createGeometry(map).equalsExact(expected));
+    }
+
+    @Test
+    public void testSimplifiedGeoShapePolygon() throws JsonParseException, JsonMappingException, IOException {
+        Polygon geom = rgb.createRandomPolygon();
+        parserUtil = new ElasticParserUtil(true);
+        parserUtil.setSimplificationDistance(1e-3);
+        Polygon actual = (Polygon) parserUtil.createGeometry(rgb.toMap(geom));
+        assertTrue(actual.getNumPoints() <= geom.getNumPoints());
+        assertTrue(actual.getExteriorRing().isClosed());
+        assertTrue(actual.getExteriorRing().getNumPoints() >= 4);
+    }
+
+    @Test
+    public void testSimplifiedGeoShapeCollapsedRing() {
+        parserUtil.setSimplificationDistance(10);
+        final Map<String,Object> map = new HashMap<>();
+        map.put("type", "Polygon");
+        map.put("coordinates", Arrays.asList(Arrays.asList(Arrays.asList(0.0,0.0), Arrays.asList(1.0,0.0), 
+                Arrays.asList(1.0,1.0), Arrays.asList(0.0,1.0), Arrays.asList(0.0,0.0))));
+        final Geometry geometry = parserUtil.createGeometry(map);
+        assertEquals(5, geometry.getNumPoints());
+    }
+
     @Test
     public void testUnrecognizedGeometry() {
         final Geometry geom = parserUtil.createGeometry(3.0);
@@ -309,4 +446,45 @@ public class ElasticParserUtilTest {
         assertTrue(values.size()==1);
         assertTrue(values.get(0).equals(map));
     }
+
+    @Test
+    public void testDecodeSourceFields() throws IOException {
+        properties.put("attr", "value");
+        properties.put("num", 2.3);
+        properties.put("unused", new LinkedHashMap<String,Object>());
+        ((Map) properties.get("unused")).put("attr", Arrays.asList(1, 2, 3));
+        properties.put("parent", new ArrayList<Map<String,Object>>());
+        ((List)properties.get("parent")).add(new LinkedHashMap<String,Object>());
+        ((Map) ((List)properties.get("parent")).get(0)).put("attr", "value1");
+        ((List)properties.get("parent")).add(new LinkedHashMap<String,Object>());
+        ((Map) ((List)properties.get("parent")).get(1)).put("attr", Arrays.asList("value2", "value3"));
+        final Map<String,Object> map = new LinkedHashMap<String,Object>();
+        map.put("type", "Point");
+        map.put("coordinates", Arrays.asList(1.5, 2.5));
+        properties.put("geom", map);
+
+        List<String> fieldNames = Arrays.asList("attr", "num", "parent.attr", "geom", "missing");
+        List<Object>[] values = new ElasticSourceDecoder(fieldNames).decode(
+                XContentFactory.jsonBuilder().map(properties).bytes());
+        for (int i=0; i<fieldNames.size(); i++) {
+            assertEquals(parserUtil.readField(properties, fieldNames.get(i)), values[i]);
+        }
+        assertEquals(Arrays.asList("value1", "value2", "value3"), values[2]);
+        assertNull(values[4]);
+    }
+
+    @Test
+    public void testDecodeSourceParentAndChildFields() throws IOException {
+        final Map<String,Object> map = new LinkedHashMap<String,Object>();
+        properties.put("parent", map);
+        map.put("attr2", "value2");
+        map.put("attr3", "value3");
+
+        List<String> fieldNames = Arrays.asList("parent", "parent.attr2");
+        List<Object>[] values = new ElasticSourceDecoder(fieldNames).decode(
+                XContentFactory.jsonBuilder().map(properties).bytes());
+        assertEquals(parserUtil.readField(properties, "parent"), values[0]);
+        assertEquals(parserUtil.readField(properties, "parent.attr2"), values[1]);
+    }
+
 }
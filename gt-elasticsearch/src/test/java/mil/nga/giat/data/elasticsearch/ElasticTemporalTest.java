@@ -20,9 +20,12 @@ package mil.nga.giat.data.elasticsearch;
 import static org.junit.Assert.*;
 
 import java.util.Date;
+import java.util.SortedSet;
 
+import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.util.DateRange;
 import org.junit.Test;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.filter.Filter;
@@ -205,4 +208,40 @@ public class ElasticTemporalTest extends ElasticTestSupport {
         assertEquals(1, features.size());
     }
 
+    @Test
+    public void testTimeDomainRange() throws Exception {
+        init();
+        ElasticTimeDomain domain = new ElasticTimeDomain(featureSource);
+        DateRange range = domain.getRange(Query.ALL, "installed_tdt");
+        assertEquals(new Date(973941381000l), range.getMinValue());
+        assertEquals(new Date(1392187068000l), range.getMaxValue());
+    }
+
+    @Test
+    public void testTimeDomainValues() throws Exception {
+        init();
+        ElasticTimeDomain domain = new ElasticTimeDomain(featureSource);
+        SortedSet<Date> values = domain.getValues(Query.ALL, "installed_tdt");
+        assertEquals(9, values.size());
+        assertEquals(new Date(973941381000l), values.first());
+        assertEquals(new Date(1392187068000l), values.last());
+    }
+
+    @Test
+    public void testTimeDomainIntervals() throws Exception {
+        init();
+        ElasticTimeDomain domain = new ElasticTimeDomain(featureSource);
+        SortedSet<Date> values = domain.getValues(Query.ALL, "installed_tdt", "year");
+        assertEquals(8, values.size());
+        assertEquals(new Date(946684800000l), values.first());
+    }
+
+    @Test
+    public void testTimeDomainDateAttribute() throws Exception {
+        init();
+        ElasticTimeDomain domain = new ElasticTimeDomain(featureSource);
+        assertNotNull(domain.getDateAttribute());
+        assertNull(domain.getRange(Query.ALL, "vendor_s"));
+    }
+
 }
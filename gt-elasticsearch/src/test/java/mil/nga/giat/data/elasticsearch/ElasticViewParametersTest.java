@@ -28,10 +28,14 @@ import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.store.ContentFeatureCollection;
 import org.geotools.factory.Hints;
+import org.geotools.feature.visitor.CountVisitor;
 import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.filter.FilterFactory;
 import org.opengis.filter.PropertyIsEqualTo;
 
+import com.vividsolutions.jts.geom.Point;
+
 public class ElasticViewParametersTest extends ElasticTestSupport {
 
     @Test
@@ -131,4 +135,111 @@ public class ElasticViewParametersTest extends ElasticTestSupport {
         assertEquals(fsi.next().getAttribute("modem_b"), true);
     }
 
+    @Test
+    public void testGeohashGridParameters() throws Exception {
+        init();
+        Map<String, String> vparams = new HashMap<String, String>();
+        vparams.put("grid", "1");
+        Hints hints = new Hints(Hints.VIRTUAL_TABLE_PARAMETERS, vparams);
+        Query q = new Query(featureSource.getSchema().getTypeName());
+        q.setHints(hints);
+        ContentFeatureCollection features = featureSource.getFeatures(q);
+        assertEquals(1, features.size());
+        SimpleFeatureIterator fsi = features.features();
+        assertTrue(fsi.hasNext());
+        SimpleFeature feature = fsi.next();
+        assertEquals(layerName + ".s", feature.getID());
+        assertEquals(11L, feature.getAttribute("_doc_count"));
+        Point point = (Point) feature.getDefaultGeometry();
+        assertEquals(22.5, point.getX(), 1e-9);
+        assertEquals(22.5, point.getY(), 1e-9);
+    }
+
+    @Test
+    public void testGeohashGridCountVisitor() throws Exception {
+        init();
+        Map<String, String> vparams = new HashMap<String, String>();
+        vparams.put("grid", "1");
+        Hints hints = new Hints(Hints.VIRTUAL_TABLE_PARAMETERS, vparams);
+        Query q = new Query(featureSource.getSchema().getTypeName());
+        q.setHints(hints);
+        CountVisitor visitor = new CountVisitor();
+        featureSource.getFeatures(q).accepts(visitor, null);
+        assertEquals(1, visitor.getCount());
+    }
+
+    @Test
+    public void testGeohashGridMetricParameters() throws Exception {
+        init();
+        Map<String, String> vparams = new HashMap<String, String>();
+        vparams.put("grid", "1");
+        vparams.put("grid_metric", "max");
+        Hints hints = new Hints(Hints.VIRTUAL_TABLE_PARAMETERS, vparams);
+        Query q = new Query(featureSource.getSchema().getTypeName());
+        q.setPropertyNames(new String[] { "geo", "speed_is" });
+        q.setHints(hints);
+        FilterFactory ff = dataStore.getFilterFactory();
+        PropertyIsEqualTo filter = ff.equals(ff.property("modem_b"), ff.literal(true));
+        q.setFilter(filter);
+        ContentFeatureCollection features = featureSource.getFeatures(q);
+        SimpleFeatureIterator fsi = features.features();
+        assertTrue(fsi.hasNext());
+        SimpleFeature feature = fsi.next();
+        assertEquals(8L, feature.getAttribute("_doc_count"));
+        assertEquals(300., feature.getAttribute("speed_is"));
+        assertFalse(fsi.hasNext());
+    }
+
+    @Test
+    public void testGeohashGridAverageOfIntegerAttribute() throws Exception {
+        init();
+        Map<String, String> vparams = new HashMap<String, String>();
+        vparams.put("grid", "1");
+        vparams.put("grid_metric", "avg");
+        Hints hints = new Hints(Hints.VIRTUAL_TABLE_PARAMETERS, vparams);
+        Query q = new Query(featureSource.getSchema().getTypeName());
+        q.setPropertyNames(new String[] { "geo", "speed_is" });
+        q.setHints(hints);
+        FilterFactory ff = dataStore.getFilterFactory();
+        q.setFilter(ff.equals(ff.property("modem_b"), ff.literal(true)));
+        SimpleFeatureIterator fsi = featureSource.getFeatures(q).features();
+        assertTrue(fsi.hasNext());
+        SimpleFeature feature = fsi.next();
+        assertEquals(Double.class, feature.getFeatureType().getDescriptor("speed_is").getType().getBinding());
+        // 150 (8 values) and 300 (3 values)
+        assertEquals(2100/11., (Double) feature.getAttribute("speed_is"), 1e-9);
+        fsi.close();
+    }
+
+    @Test
+    public void testGeohashGridWithoutGeometryProperty() throws Exception {
+        init();
+        Map<String, String> vparams = new HashMap<String, String>();
+        vparams.put("grid", "1");
+        vparams.put("grid_metric", "sum");
+        Hints hints = new Hints(Hints.VIRTUAL_TABLE_PARAMETERS, vparams);
+        Query q = new Query(featureSource.getSchema().getTypeName());
+        q.setPropertyNames(new String[] { "speed_is" });
+        q.setHints(hints);
+        SimpleFeatureIterator fsi = featureSource.getFeatures(q).features();
+        assertTrue(fsi.hasNext());
+        SimpleFeature feature = fsi.next();
+        assertNotNull(feature.getDefaultGeometry());
+        assertEquals(11L, feature.getAttribute("_doc_count"));
+        assertNotNull(feature.getAttribute("speed_is"));
+        assertNull(feature.getFeatureType().getDescriptor("hejda"));
+        fsi.close();
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidGeohashGridSize() throws Exception {
+        init();
+        Map<String, String> vparams = new HashMap<String, String>();
+        vparams.put("grid", "auto");
+        vparams.put("grid_size", "large");
+        Query q = new Query(featureSource.getSchema().getTypeName());
+        q.setHints(new Hints(Hints.VIRTUAL_TABLE_PARAMETERS, vparams));
+        featureSource.getFeatures(q).features().close();
+    }
+
 }
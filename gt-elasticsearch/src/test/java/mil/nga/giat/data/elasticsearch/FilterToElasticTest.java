@@ -742,6 +742,33 @@ public class FilterToElasticTest {
         assertTrue(!(builder.getFilterBuilder() instanceof AndFilterBuilder));
     }
 
+    @Test
+    public void testPartiallySupportedQuery() {
+        PropertyIsEqualTo supported = ff.equals(ff.property("stringAttr"), ff.literal("value"));
+        PropertyIsEqualTo unsupported = ff.equals(ff.function("strToUpperCase", ff.property("stringAttr")),
+                ff.literal("VALUE"));
+        query.setFilter(ff.and(supported, unsupported));
+
+        FilterToElastic expected = new FilterToElastic();
+        expected.setFeatureType(featureType);
+        expected.encode(supported);
+
+        builder.encode(query);
+        assertFalse(builder.getFullySupported());
+        assertEquals(unsupported, builder.getResidualFilter());
+        assertTrue(builder.getFilterBuilder().toString().equals(expected.getFilterBuilder().toString()));
+    }
+
+    @Test
+    public void testFullySupportedQuery() {
+        PropertyIsEqualTo filter = ff.equals(ff.property("stringAttr"), ff.literal("value"));
+        query.setFilter(filter);
+
+        builder.encode(query);
+        assertTrue(builder.getFullySupported());
+        assertEquals(Filter.INCLUDE, builder.getResidualFilter());
+    }
+
     @Test
     public void testTemporalStringLiteral() {
         After filter = ff.after(ff.property("dateAttr"), ff.literal("1970-01-01 00:00:00"));